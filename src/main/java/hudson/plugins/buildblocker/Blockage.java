@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.model.Job;
+import hudson.model.queue.SubTask;
+
+/**
+ * The result of a {@link BlockingJobsMonitor} check: the task that blocks the queue item
+ * and the configuration line (job regex or environment variable name) that matched.
+ * Blockages caused by another controller have no local task, only the name of the blocker.
+ * A resolving blockage means the environment of the blocking task is not known yet.
+ */
+public class Blockage {
+
+    /**
+     * the blocking task
+     */
+    private final SubTask task;
+
+    /**
+     * the name of the blocker on another controller
+     */
+    private final String remoteName;
+
+    /**
+     * the matched line of the job configuration
+     */
+    private final String rule;
+
+    /**
+     * true if the environment of the blocking task is still being resolved
+     */
+    private final boolean resolving;
+
+    /**
+     * Constructor
+     *
+     * @param task the blocking task
+     * @param rule the matched line of the job configuration
+     */
+    public Blockage(SubTask task, String rule) {
+        this(task, null, rule, false);
+    }
+
+    private Blockage(SubTask task, String remoteName, String rule, boolean resolving) {
+        this.task = task;
+        this.remoteName = remoteName;
+        this.rule = rule;
+        this.resolving = resolving;
+    }
+
+    /**
+     * Returns a blockage caused by work running on another controller.
+     *
+     * @param name the name of the blocker on the other controller
+     * @param rule the matched line of the job configuration
+     * @return the blockage
+     */
+    public static Blockage remote(String name, String rule) {
+        return new Blockage(null, name, rule, false);
+    }
+
+    /**
+     * Returns a blockage by a task whose environment is still being resolved.
+     *
+     * @param task the possibly blocking task
+     * @param rule the environment variable that could not be checked yet
+     * @return the blockage
+     */
+    public static Blockage resolving(SubTask task, String rule) {
+        return new Blockage(task, null, rule, true);
+    }
+
+    /**
+     * Returns the blocking task.
+     *
+     * @return the blocking task or null if it runs on another controller
+     */
+    public SubTask getTask() {
+        return task;
+    }
+
+    /**
+     * Returns the matched line of the job configuration.
+     *
+     * @return the matched job regex or environment variable name
+     */
+    public String getRule() {
+        return rule;
+    }
+
+    /**
+     * Returns true if the environment of the blocking task is still being resolved.
+     *
+     * @return true if the blockage is not confirmed yet
+     */
+    public boolean isResolving() {
+        return resolving;
+    }
+
+    /**
+     * Returns the display name of the blocking task. Matrix configurations are reported
+     * by their parent project, other tasks like Pipeline node steps by their job.
+     *
+     * @return the display name of the blocking task
+     */
+    public String getBlockerName() {
+        if (task == null) {
+            return Messages.RemoteBlocker(remoteName);
+        }
+        Job<?, ?> job = BlockingTasks.jobOf(task.getOwnerTask());
+        return job != null ? job.getDisplayName() : task.getDisplayName();
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded on-disk history of the intervals queue items spent blocked.
+ *
+ * The intervals are kept in a ring file of fixed size records in the Jenkins home directory, the oldest
+ * records being overwritten once the file is full. Records are written on a background thread so the queue
+ * never waits for the disk. Names longer than the space of a record are cut and marked with
+ * {@link #TRUNCATED} and a hash of the full name, so different long names are never merged.
+ */
+public class BlockedTimeHistory {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(BlockedTimeHistory.class.getName());
+
+    /**
+     * the name of the ring file in the Jenkins home directory
+     */
+    public static final String FILE_NAME = "build-blocker-history.bin";
+
+    /**
+     * the default number of records kept
+     */
+    private static final int CAPACITY = Integer.getInteger(BlockedTimeHistory.class.getName() + ".capacity", 8192);
+
+    private static final int MAGIC = 0x42424831;
+    private static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 256;
+
+    /**
+     * the maximum number of bytes stored of a job, blocker or rule name
+     */
+    private static final int MAX_NAME_BYTES = 78;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * the marker between the kept prefix and the hash of a truncated name
+     */
+    public static final String TRUNCATED = "\u2026#";
+
+    /**
+     * the number of bytes of the marker and hash appended to a truncated name
+     */
+    private static final int TRUNCATED_SUFFIX_BYTES = TRUNCATED.getBytes(UTF8).length + 8;
+
+    private static BlockedTimeHistory instance;
+
+    /**
+     * the ring file
+     */
+    private final File file;
+
+    /**
+     * the maximum number of records in the ring file
+     */
+    private final int capacity;
+
+    /**
+     * the thread writing the records
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "BuildBlocker history writer"));
+
+    /**
+     * Constructor
+     *
+     * @param file the ring file
+     * @param capacity the maximum number of records
+     */
+    public BlockedTimeHistory(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the history of this controller.
+     *
+     * @return the history or null if Jenkins is not running
+     */
+    public static synchronized BlockedTimeHistory get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        File file = new File(jenkins.getRootDir(), FILE_NAME);
+        if (instance == null || !instance.file.equals(file)) {
+            reset();
+            instance = new BlockedTimeHistory(file, CAPACITY);
+        }
+        return instance;
+    }
+
+    /**
+     * Forgets the history of a previous Jenkins instance in this JVM, letting its writer finish the pending records.
+     */
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static synchronized void reset() {
+        if (instance != null) {
+            instance.writer.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Records a blocked interval on the background thread.
+     *
+     * @param interval the interval to record
+     */
+    public void record(final Interval interval) {
+        writer.submit(new Runnable() {
+            public void run() {
+                try {
+                    write(interval);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "could not record blocked interval in " + file, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends the given interval to the ring file, overwriting the oldest one if full.
+     *
+     * @param interval the interval to write
+     * @throws IOException
+     */
+    synchronized void write(Interval interval) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long written = readHeader(raf);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putLong(interval.start);
+            record.putLong(interval.end);
+            putName(record, interval.task);
+            putName(record, interval.blocker);
+            putName(record, interval.rule);
+            raf.seek(HEADER_SIZE + (written % capacity) * (long) RECORD_SIZE);
+            raf.write(record.array());
+
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(capacity);
+            raf.writeInt(RECORD_SIZE);
+            raf.writeLong(written + 1);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns all recorded intervals, oldest first.
+     *
+     * @return the recorded intervals
+     * @throws IOException
+     */
+    public synchronized List<Interval> readAll() throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long written = readHeader(raf);
+            int count = (int) Math.min(written, capacity);
+            List<Interval> intervals = new ArrayList<Interval>(count);
+            byte[] bytes = new byte[RECORD_SIZE];
+            for (long i = written - count; i < written; i++) {
+                raf.seek(HEADER_SIZE + (i % capacity) * (long) RECORD_SIZE);
+                raf.readFully(bytes);
+                ByteBuffer record = ByteBuffer.wrap(bytes);
+                long start = record.getLong();
+                long end = record.getLong();
+                intervals.add(new Interval(getName(record), getName(record), getName(record), start, end));
+            }
+            return intervals;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the blocked time statistics of the recorded intervals per blocked job.
+     *
+     * @return the statistics per job, sorted by total blocked time
+     * @throws IOException
+     */
+    public List<Statistics> getStatisticsByJob() throws IOException {
+        return statistics(readAll(), true);
+    }
+
+    /**
+     * Returns the blocked time statistics of the recorded intervals per blocker and rule.
+     *
+     * @return the statistics per blocker, sorted by total blocked time
+     * @throws IOException
+     */
+    public List<Statistics> getStatisticsByBlocker() throws IOException {
+        return statistics(readAll(), false);
+    }
+
+    /**
+     * Aggregates the given intervals per job or per blocker and rule.
+     */
+    static List<Statistics> statistics(List<Interval> intervals, boolean byJob) {
+        Map<String, List<Long>> durations = new TreeMap<String, List<Long>>();
+        for (Interval interval : intervals) {
+            String key = byJob ? interval.task : interval.blocker + " [" + interval.rule + "]";
+            List<Long> list = durations.get(key);
+            if (list == null) {
+                list = new ArrayList<Long>();
+                durations.put(key, list);
+            }
+            list.add(interval.getDuration());
+        }
+        List<Statistics> result = new ArrayList<Statistics>(durations.size());
+        for (Map.Entry<String, List<Long>> entry : durations.entrySet()) {
+            result.add(new Statistics(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(result, new Comparator<Statistics>() {
+            public int compare(Statistics a, Statistics b) {
+                return a.total < b.total ? 1 : a.total > b.total ? -1 : 0;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the number of records written so far, or 0 for a new or foreign file.
+     */
+    private long readHeader(RandomAccessFile raf) throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return 0;
+        }
+        raf.seek(0);
+        if (raf.readInt() != MAGIC || raf.readInt() != capacity || raf.readInt() != RECORD_SIZE) {
+            LOG.log(Level.INFO, "resetting blocked time history {0}", file);
+            return 0;
+        }
+        return raf.readLong();
+    }
+
+    /**
+     * Writes a length prefixed name, truncated to {@link #MAX_NAME_BYTES}.
+     */
+    private static void putName(ByteBuffer record, String name) {
+        byte[] bytes = (name == null ? "" : name).getBytes(UTF8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            bytes = truncate(name, bytes).getBytes(UTF8);
+        }
+        record.putShort((short) bytes.length);
+        record.put(bytes);
+    }
+
+    /**
+     * Cuts the given name to fit {@link #MAX_NAME_BYTES}, keeping a hash of the full name after the marker.
+     */
+    static String truncate(String name, byte[] bytes) {
+        int length = MAX_NAME_BYTES - TRUNCATED_SUFFIX_BYTES;
+        // don't cut a multi-byte character in half
+        while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return new String(bytes, 0, length, UTF8) + TRUNCATED + String.format("%08x", name.hashCode());
+    }
+
+    /**
+     * Returns whether the given name was truncated when it was recorded.
+     *
+     * @param name the recorded name
+     * @return true if the name is not complete
+     */
+    public static boolean isTruncated(String name) {
+        return name != null && name.contains(TRUNCATED);
+    }
+
+    /**
+     * Reads a length prefixed name.
+     */
+    private static String getName(ByteBuffer record) {
+        int length = record.getShort();
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * A time interval a queue item spent blocked.
+     */
+    public static final class Interval {
+        private final String task;
+        private final String blocker;
+        private final String rule;
+        private final long start;
+        private final long end;
+
+        public Interval(String task, String blocker, String rule, long start, long end) {
+            this.task = task;
+            this.blocker = blocker;
+            this.rule = rule;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        public String getBlocker() {
+            return blocker;
+        }
+
+        public String getRule() {
+            return rule;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getDuration() {
+            return Math.max(end - start, 0);
+        }
+    }
+
+    /**
+     * Aggregated blocked time of a job or blocker.
+     */
+    public static final class Statistics {
+        private final String name;
+        private final int count;
+        private final long total;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Statistics(String name, List<Long> durations) {
+            long[] sorted = new long[durations.size()];
+            long sum = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = durations.get(i);
+                sum += sorted[i];
+            }
+            Arrays.sort(sorted);
+            this.name = name;
+            this.count = sorted.length;
+            this.total = sum;
+            this.p50 = percentile(sorted, 50);
+            this.p90 = percentile(sorted, 90);
+            this.p99 = percentile(sorted, 99);
+            this.max = sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(index, 0)];
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
@@ -23,27 +23,18 @@
  */
 package hudson.plugins.buildblocker;
 
-import hudson.EnvVars;
-import hudson.matrix.MatrixConfiguration;
-import hudson.model.Computer;
-import hudson.model.Executor;
-import hudson.model.Queue;
-import hudson.model.AbstractProject;
+import hudson.model.Actionable;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
+import hudson.model.Queue;
 import hudson.model.Run;
-import hudson.model.TaskListener;
 import hudson.model.queue.SubTask;
-import hudson.util.RunList;
-import java.io.IOException;
-import jenkins.model.Jenkins;
-import org.apache.commons.lang.StringUtils;
 
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,30 +43,48 @@ import java.util.logging.Logger;
  * blocking job's regular expressions.
  *
  * The first hit returns the blocking job's name.
+ *
+ * A monitor only holds immutable {@link BlockingRules}, so one instance is shared by all queue checks of a job.
+ * Checks that don't find a blockage allocate as little as possible.
  */
 public class BlockingJobsMonitor {
 
     /**
-     * the list of regular expressions from the job configuration
+     * the logger
      */
-    private List<String> blockingJobs;
+    private static final Logger LOG = Logger.getLogger(BlockingJobsMonitor.class.getName());
+
     /**
-     * the list of regular expressions from the job configuration
+     * the rules from the job configuration
      */
-    private List<String> blockingEnvVars;
+    private final BlockingRules rules;
 
     /**
      * Constructor using the job configuration entry for blocking jobs
      *
      * @param blockingJobs line feed separated list og blocking jobs
+     * @param blockingEnvVarRaw line feed separated list of blocking environment variables
      */
     public BlockingJobsMonitor(String blockingJobs, String blockingEnvVarRaw) {
-        if (StringUtils.isNotBlank(blockingJobs)) {
-            this.blockingJobs = Arrays.asList(blockingJobs.split("\n"));
-        }
-        if (StringUtils.isNotBlank(blockingEnvVarRaw)) {
-            this.blockingEnvVars = Arrays.asList(blockingEnvVarRaw.split("\n"));
-        }
+        this(BlockingRules.parse(blockingJobs, blockingEnvVarRaw));
+    }
+
+    /**
+     * Constructor using already parsed rules
+     *
+     * @param rules the parsed job configuration
+     */
+    public BlockingJobsMonitor(BlockingRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Returns the rules checked by this monitor.
+     *
+     * @return the rules checked by this monitor
+     */
+    public BlockingRules getRules() {
+        return rules;
     }
 
     /**
@@ -87,108 +96,334 @@ public class BlockingJobsMonitor {
      * @throws java.lang.InterruptedException
      */
     public SubTask getBlockingJob(Queue.Item item) throws InterruptedException {
-        if (this.blockingJobs == null && this.blockingEnvVars == null) {
+        Blockage blockage = findBlockage(item);
+        return blockage != null ? blockage.getTask() : null;
+    }
+
+    /**
+     * Returns the first blockage found for the given item, including the configuration line that matched.
+     * If the item is not blocked, it returns null.
+     *
+     * The running work and buildable items are read live; queue checks use
+     * {@link #findBlockage(Queue.Item, BlockingSnapshot)} with the published snapshot instead.
+     *
+     * @param item The queue item for which we are checking whether it can run or not. or null if we are not checking a
+     * job from the queue (currently only used by testing).
+     * @return the first blockage found, or null
+     * @throws java.lang.InterruptedException
+     */
+    public Blockage findBlockage(Queue.Item item) throws InterruptedException {
+        if (rules.isEmpty()) {
             return null;
         }
+        return findBlockage(item, BlockingSnapshot.capture());
+    }
 
-        Computer[] computers = Jenkins.getInstance().getComputers();
+    /**
+     * Returns the first blockage found for the given item in the given snapshot of the running work and
+     * buildable items. If the item is not blocked, it returns null.
+     *
+     * @param item The queue item for which we are checking whether it can run or not. or null if we are not checking a
+     * job from the queue (currently only used by testing).
+     * @param snapshot the running work and buildable items to check
+     * @return the first blockage found, or null
+     * @throws java.lang.InterruptedException
+     */
+    public Blockage findBlockage(Queue.Item item, BlockingSnapshot snapshot) throws InterruptedException {
+        if (rules.isEmpty()) {
+            return null;
+        }
 
-        for (Computer computer : computers) {
-            List<Executor> executors = computer.getExecutors();
+        BlockingRules.RequestedValues requested = null;
+        if (item != null && !rules.getEnvVars().isEmpty()) {
+            requested = requestedValues(item);
+        }
 
-            executors.addAll(computer.getOneOffExecutors());
+        // a build whose environment is still being resolved blocks only if nothing else does
+        Blockage resolving = checkRunning(snapshot.getRunning(), item, requested);
+        if (resolving != null && !resolving.isResolving()) {
+            return resolving;
+        }
 
-            for (Executor executor : executors) {
-                if (executor.isBusy()) {
-                    Queue.Executable currentExecutable = executor.getCurrentExecutable();
+        Blockage remote = checkRemoteKeys(requested);
+        if (remote != null) {
+            return remote;
+        }
 
-                    SubTask subTask = currentExecutable.getParent();
-                    Queue.Task task = subTask.getOwnerTask();
+        Blockage started = checkStarted(snapshot.getBuildable(), item, requested);
+        if (started != null) {
+            return started;
+        }
 
-                    if (task instanceof MatrixConfiguration) {
-                        task = ((MatrixConfiguration) task).getParent();
+        /**
+         * check the list of items that have already been approved for building (but haven't actually started yet)
+         */
+        if (!rules.getJobPatterns().isEmpty()) {
+            List<BlockingSnapshot.Work> buildable = snapshot.getBuildable();
+            for (int i = 0; i < buildable.size(); i++) {
+                BlockingSnapshot.Work work = buildable.get(i);
+                if ((item == null || work.getItemId() != item.getId()) && work.getFullName() != null) {
+                    String rule = rules.matchJob(work.getFullName());
+                    if (rule != null) {
+                        return new Blockage(work.getTask(), rule);
                     }
+                }
+            }
+        }
 
-                    AbstractProject project = (AbstractProject) task;
-                    if (this.blockingJobs != null && !this.blockingJobs.isEmpty()) {
-                        for (String blockingJob : this.blockingJobs) {
-                            try {
-                                if (project.getFullName().matches(blockingJob)) {
-                                    return subTask;
-                                }
-                            } catch (java.util.regex.PatternSyntaxException pse) {
-                                return null;
-                            }
-                        }
+        Blockage queued = checkQueuedKeys(item, requested);
+        if (queued != null) {
+            return queued;
+        }
+
+        return resolving;
+    }
+
+    /**
+     * Checks the environment variable values against the parameters of the buildable and pending items,
+     * using the {@link QueueKeyIndex}.
+     *
+     * @param item the queue item to check
+     * @param requested the values the queue item requests if there are environment variable rules
+     * @return the first blockage found, or null
+     */
+    private Blockage checkQueuedKeys(Queue.Item item, BlockingRules.RequestedValues requested) {
+        if (requested == null) {
+            return null;
+        }
+        QueueKeyIndex index = QueueKeyIndex.get();
+        if (index == null) {
+            return null;
+        }
+        List<String> envVars = rules.getEnvVars();
+        for (int i = 0; i < envVars.size(); i++) {
+            String envVar = envVars.get(i);
+            String value = requested.get(i);
+            if (value != null) {
+                Queue.BuildableItem other = index.findConflict(item, envVar, value);
+                if (other != null) {
+                    return new Blockage(other.task, envVar);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the environment variable values against the parameters of the items that left the queue to start
+     * but are not running yet, as they would be checked once running.
+     *
+     * @param buildable the buildable work of a snapshot
+     * @param item the queue item to check
+     * @param requested the values the queue item requests if there are environment variable rules
+     * @return the first blockage found, or null
+     */
+    private Blockage checkStarted(List<BlockingSnapshot.Work> buildable, Queue.Item item,
+            BlockingRules.RequestedValues requested) {
+        if (requested == null) {
+            return null;
+        }
+        List<String> envVars = rules.getEnvVars();
+        for (int i = 0; i < buildable.size(); i++) {
+            BlockingSnapshot.Work work = buildable.get(i);
+            if (!work.isStarted() || work.getItemId() == item.getId()) {
+                continue;
+            }
+            for (int j = 0; j < envVars.size(); j++) {
+                String envVar = envVars.get(j);
+                String rule = requested.match(j, envVar, work.getParameters().get(envVar));
+                if (rule != null) {
+                    return new Blockage(work.getTask(), rule);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the keys published by other controllers through the {@link BlockingLockStore}. Only the cached
+     * keys of the last {@link LockStoreSync} run are read, so this never waits for I/O. Environment variable
+     * values are compared literally.
+     *
+     * @param requested the values the queue item requests if there are environment variable rules
+     * @return the first blockage found, or null
+     */
+    private Blockage checkRemoteKeys(BlockingRules.RequestedValues requested) {
+        Set<String> remoteKeys = LockStoreSync.getRemoteKeys();
+        if (remoteKeys.isEmpty()) {
+            return null;
+        }
+        if (!rules.getJobPatterns().isEmpty()) {
+            for (String key : remoteKeys) {
+                if (key.startsWith(LockStoreSync.JOB_PREFIX)) {
+                    String fullName = key.substring(LockStoreSync.JOB_PREFIX.length());
+                    String rule = rules.matchJob(fullName);
+                    if (rule != null) {
+                        return Blockage.remote(fullName, rule);
                     }
-                    if (this.blockingEnvVars != null && !this.blockingEnvVars.isEmpty()) {
-                        for (String envVar : this.blockingEnvVars) {
-                            Map<String, String> itemParamsMap = new HashMap<String, String>();
-                            if (item == null) {
-                                throw new InterruptedException("Queue.Item item; nothing to test");
-                            }
-                            Logger.getLogger(BlockingJobsMonitor.class.getName()).log(Level.INFO, "item name: " + item.toString());
-                            for (ParametersAction pa : item.getActions(ParametersAction.class)) {
-                                for (ParameterValue p : pa.getParameters()) {
-                                    String valueRaw = p.getShortDescription();
-                                    if (StringUtils.isNotBlank(valueRaw) && valueRaw.contains("=")) {
-                                        String[] keyValue = valueRaw.split("=", -1);
-                                        String value = keyValue[1].replaceAll("^\'|\'$", "");
-                                        if (value != null) {
-                                            itemParamsMap.put(p.getName(), value);
-                                        }
-                                    }
-                                }
-                            }
-                            Logger.getLogger(BlockingJobsMonitor.class.getName()).log(Level.INFO, "itemParamsMap: " + itemParamsMap);
-                            try {
-                                String blockingVarValue = itemParamsMap.get(envVar);
-                                RunList buildList = project.getBuilds();
-
-                                for (Iterator it = buildList.iterator(); it.hasNext();) {
-                                    Run build = (Run) it.next();
-                                    Logger.getLogger(BlockingJobsMonitor.class.getName()).log(Level.INFO, "build Status: " + build.isBuilding() + ", " + build.toString());
-                                    if (build.isBuilding()) {
-                                        EnvVars environment = build.getEnvironment(TaskListener.NULL);
-                                        String existingEnvVarValue = environment.get(envVar);
-                                        if (existingEnvVarValue != null && blockingVarValue != null && existingEnvVarValue.matches(blockingVarValue)) {
-                                            Logger.getLogger(BlockingJobsMonitor.class.getName()).log(Level.INFO, "envVar:{0} with existingEnvVarValue:{1}  - LOCKED", new Object[]{envVar, existingEnvVarValue});
-                                            return subTask;
-                                        }
-                                    }
-                                }
-                            } catch (java.util.regex.PatternSyntaxException pse) {
-                                return null;
-                            } catch (IOException ex) {
-                                Logger.getLogger(BlockingJobsMonitor.class.getName()).log(Level.SEVERE, null, ex);
-                                return null;
-                            } catch (InterruptedException ex) {
-                                Logger.getLogger(BlockingJobsMonitor.class.getName()).log(Level.SEVERE, null, ex);
-                                return null;
-                            }
+                }
+            }
+        }
+        if (requested != null) {
+            List<String> envVars = rules.getEnvVars();
+            for (int i = 0; i < envVars.size(); i++) {
+                String envVar = envVars.get(i);
+                String value = requested.get(i);
+                if (value != null && remoteKeys.contains(LockStoreSync.envKey(envVar, value))) {
+                    return Blockage.remote(envVar + "=" + value, envVar);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the running work.
+     *
+     * @param running the running work of a snapshot
+     * @param item the queue item to check
+     * @param requested the values the queue item requests if there are environment variable rules
+     * @return the first blockage found, a resolving blockage only if there is no other one, or null
+     * @throws InterruptedException if there are environment variable rules but no item to check
+     */
+    private Blockage checkRunning(List<BlockingSnapshot.Work> running, Queue.Item item,
+            BlockingRules.RequestedValues requested)
+            throws InterruptedException {
+        Blockage resolving = null;
+        for (int i = 0; i < running.size(); i++) {
+            BlockingSnapshot.Work work = running.get(i);
+            SubTask subTask = work.getTask();
+
+            if (work.getFullName() != null) {
+                String rule = rules.matchJob(work.getFullName());
+                if (rule != null) {
+                    return new Blockage(subTask, rule);
+                }
+            }
+
+            if (!rules.getEnvVars().isEmpty()) {
+                if (item == null) {
+                    throw new InterruptedException("Queue.Item item; nothing to test");
+                }
+                Queue.Executable currentExecutable = work.getExecutable();
+                if (currentExecutable instanceof Run) {
+                    Blockage blockage = matchEnvVars((Run<?, ?>) currentExecutable, subTask, requested);
+                    if (blockage != null) {
+                        if (!blockage.isResolving()) {
+                            return blockage;
+                        }
+                        if (resolving == null) {
+                            resolving = blockage;
                         }
                     }
                 }
             }
         }
+        return resolving;
+    }
+
+    /**
+     * Returns the first blocking environment variable whose value in the given running build matches the value
+     * requested by the queue item. The value is read by the {@link BlockingKeyExtractor}s; while it is not
+     * known yet, a resolving blockage is returned.
+     *
+     * @param build the running build
+     * @param subTask the running task
+     * @param requested the values the queue item requests, or null if none
+     * @return the blockage on the matching environment variable or null
+     */
+    private Blockage matchEnvVars(Run<?, ?> build, SubTask subTask, BlockingRules.RequestedValues requested) {
+        if (requested == null || !build.isBuilding()) {
+            return null;
+        }
+        Blockage resolving = null;
+        List<String> envVars = rules.getEnvVars();
+        for (int i = 0; i < envVars.size(); i++) {
+            String envVar = envVars.get(i);
+            String blockingVarValue = requested.get(i);
+            if (blockingVarValue == null) {
+                continue;
+            }
+            BlockingKeyExtractor.Result existing = BlockingKeyExtractor.extractValue(build, envVar, rules.getEnvVarSource(i));
+            if (existing == null) {
+                continue;
+            }
+            String existingEnvVarValue = existing.getValue();
+            if (!existing.isResolved()) {
+                if (resolving == null) {
+                    resolving = Blockage.resolving(subTask, envVar);
+                }
+                continue;
+            }
+            String rule = requested.match(i, envVar, existingEnvVarValue);
+            if (rule != null) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "envVar:{0} with existingEnvVarValue:{1} of {2} - LOCKED",
+                            new Object[]{envVar, existingEnvVarValue, build});
+                }
+                return new Blockage(subTask, rule);
+            }
+        }
+        return resolving;
+    }
 
-        /**
-         * check the list of items that have already been approved for building (but haven't actually started yet)
-         */
-        List<Queue.BuildableItem> buildableItems
-                = Jenkins.getInstance().getQueue().getBuildableItems();
-
-        for (Queue.BuildableItem buildableItem : buildableItems) {
-            if (item != buildableItem && this.blockingJobs != null && !this.blockingJobs.isEmpty()) {
-                for (String blockingJob : this.blockingJobs) {
-                    AbstractProject project = (AbstractProject) buildableItem.task;
-                    if (project.getFullName().matches(blockingJob)) {
-                        return buildableItem.task;
+    /**
+     * Returns the values the given queue item requests for the blocking environment variables, without building
+     * a map of all its parameters.
+     *
+     * @param item the queue item
+     * @return the requested values or null if the item has none
+     */
+    private BlockingRules.RequestedValues requestedValues(Queue.Item item) {
+        List<ParametersAction> actions = item.getActions(ParametersAction.class);
+        if (actions.isEmpty()) {
+            return null;
+        }
+        List<String> envVars = rules.getEnvVars();
+        String[] values = null;
+        for (int a = 0; a < actions.size(); a++) {
+            List<ParameterValue> parameters = actions.get(a).getParameters();
+            for (int p = 0; p < parameters.size(); p++) {
+                ParameterValue parameter = parameters.get(p);
+                for (int i = 0; i < envVars.size(); i++) {
+                    if (envVars.get(i).equals(parameter.getName())) {
+                        String value = ParametersKeyExtractor.valueOf(parameter);
+                        if (value != null) {
+                            if (values == null) {
+                                values = new String[envVars.size()];
+                            }
+                            values[i] = value;
+                        }
                     }
                 }
             }
         }
+        return values != null ? new BlockingRules.RequestedValues(values) : null;
+    }
 
-        return null;
+    /**
+     * Returns the parameter values of the given queue item or build by parameter name.
+     *
+     * @param item the queue item or build
+     * @return the parameter values by name
+     */
+    static Map<String, String> itemParameters(Actionable item) {
+        List<ParametersAction> actions = item.getActions(ParametersAction.class);
+        if (actions.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> itemParamsMap = new HashMap<String, String>();
+        for (ParametersAction pa : actions) {
+            for (ParameterValue p : pa.getParameters()) {
+                String value = ParametersKeyExtractor.valueOf(p);
+                if (value != null) {
+                    itemParamsMap.put(p.getName(), value);
+                }
+            }
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "item: {0}, itemParamsMap: {1}", new Object[]{item, itemParamsMap});
+        }
+        return itemParamsMap;
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+/**
+ * Reads the value of a blocking key, e.g. a branch name, from a running build.
+ *
+ * Extractors are asked in ordinal order and the first one returning a value wins, so cheap extractors
+ * reading a single action should have a higher ordinal than the full environment. A line of the blocking
+ * environment variables field can name a single extractor with <code>name:id</code>, e.g.
+ * <code>ghprbSourceBranch:parameters</code>.
+ */
+public abstract class BlockingKeyExtractor implements ExtensionPoint {
+
+    /**
+     * Returns the id used to select this extractor in the job configuration.
+     *
+     * @return the id of this extractor
+     */
+    public abstract String getId();
+
+    /**
+     * Returns the value of the given key in the given running build.
+     *
+     * @param build the running build
+     * @param name the name of the key
+     * @return the value, {@link Result#UNRESOLVED} if it is not known yet, or null if this extractor doesn't know
+     * the key
+     */
+    public abstract Result extract(Run<?, ?> build, String name);
+
+    /**
+     * Returns all registered extractors.
+     *
+     * @return all registered extractors
+     */
+    public static ExtensionList<BlockingKeyExtractor> all() {
+        return Jenkins.getInstance().getExtensionList(BlockingKeyExtractor.class);
+    }
+
+    /**
+     * Returns the value of the given key using the given extractor or, without one, the first extractor knowing it.
+     *
+     * @param build the running build
+     * @param name the name of the key
+     * @param source the id of the extractor to use or null to ask all of them
+     * @return the value, {@link Result#UNRESOLVED} or null
+     */
+    public static Result extractValue(Run<?, ?> build, String name, String source) {
+        for (BlockingKeyExtractor extractor : all()) {
+            if (source == null || source.equals(extractor.getId())) {
+                Result value = extractor.extract(build, name);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The value of a key, or the marker that it is not known yet.
+     */
+    public static final class Result {
+
+        /**
+         * the result of extractors whose value is not available yet
+         */
+        public static final Result UNRESOLVED = new Result(null);
+
+        private final String value;
+
+        private Result(String value) {
+            this.value = value;
+        }
+
+        /**
+         * Returns the result for a known value.
+         *
+         * @param value the value, may be null
+         * @return the result for the value, or null if the value is null
+         */
+        public static Result of(String value) {
+            return value != null ? new Result(value) : null;
+        }
+
+        /**
+         * Returns whether the value is known.
+         *
+         * @return false for {@link #UNRESOLVED}
+         */
+        public boolean isResolved() {
+            return this != UNRESOLVED;
+        }
+
+        /**
+         * Returns the value.
+         *
+         * @return the value, or null if it is not resolved
+         */
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return isResolved() ? value : "<unresolved>";
+        }
+    }
+}
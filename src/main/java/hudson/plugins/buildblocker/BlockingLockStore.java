@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Backend shared by several controllers to coordinate blocking across them.
+ *
+ * Each controller periodically publishes the blocking keys of its running work under a lease and reads the
+ * keys published by the other controllers. Keys of expired leases are ignored, so a controller that goes away
+ * stops blocking the others after its lease ran out. The queue never calls a store directly, see
+ * {@link LockStoreSync}.
+ */
+public abstract class BlockingLockStore implements ExtensionPoint {
+
+    /**
+     * Returns true if this store is configured and should be used.
+     *
+     * @return true if this store should be used
+     */
+    public abstract boolean isEnabled();
+
+    /**
+     * Replaces the keys published by the given controller.
+     *
+     * @param controllerId the id of the publishing controller
+     * @param keys the blocking keys of the running work of the controller
+     * @param leaseMillis how long the keys stay valid without being published again
+     * @throws IOException
+     */
+    public abstract void publish(String controllerId, Collection<String> keys, long leaseMillis) throws IOException;
+
+    /**
+     * Returns the keys with a valid lease published by all controllers but the given one.
+     *
+     * @param controllerId the id of the reading controller
+     * @return the keys published by the other controllers
+     * @throws IOException
+     */
+    public abstract Set<String> readOthers(String controllerId) throws IOException;
+
+    /**
+     * Returns all registered stores.
+     *
+     * @return all registered stores
+     */
+    public static ExtensionList<BlockingLockStore> all() {
+        return Jenkins.getInstance().getExtensionList(BlockingLockStore.class);
+    }
+
+    /**
+     * Returns the first enabled store.
+     *
+     * @return the first enabled store or null if coordination is disabled
+     */
+    public static BlockingLockStore getEnabled() {
+        for (BlockingLockStore store : all()) {
+            if (store.isEnabled()) {
+                return store;
+            }
+        }
+        return null;
+    }
+}
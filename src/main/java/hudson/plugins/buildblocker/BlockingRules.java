@@ -0,0 +1,438 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable, pre-compiled form of the blocking jobs and blocking environment variable fields of a job
+ * configuration. Instances are created once per configuration and shared by all queue checks.
+ */
+public final class BlockingRules {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(BlockingRules.class.getName());
+
+    /**
+     * rules of a job without any blocking configuration
+     */
+    public static final BlockingRules EMPTY = new BlockingRules(Collections.<Pattern>emptyList(),
+            Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    /**
+     * appended to the rule of a blockage whose match gave up
+     */
+    public static final String GAVE_UP = "(gave up matching, blocked to be safe)";
+
+    static final int NO_MATCH = 0;
+    static final int MATCH = 1;
+    static final int TOO_EXPENSIVE = 2;
+
+    /**
+     * the patterns already warned about as too expensive
+     */
+    private static final Set<String> WARNED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * the characters that make a line a regular expression rather than a literal name or value
+     */
+    private static final String REGEX_CHARACTERS = "\\[](){}.*+?^$|";
+
+    /**
+     * the character sequence of the current thread, reused by all its matches
+     */
+    private static final ThreadLocal<BoundedCharSequence> SEQUENCE = new ThreadLocal<BoundedCharSequence>() {
+        @Override
+        protected BoundedCharSequence initialValue() {
+            return new BoundedCharSequence("", BoundedCharSequence.DEFAULT_MAX_STEPS);
+        }
+    };
+
+    /**
+     * the compiled regular expressions of the blocking jobs field
+     */
+    private final List<Pattern> jobPatterns;
+
+    /**
+     * the blocking job expressions without regular expression syntax, compared by equality, or null
+     */
+    private final String[] jobLiterals;
+
+    /**
+     * the matchers of the blocking job patterns of the current thread, reused by all its checks
+     */
+    private final ThreadLocal<Matcher[]> jobMatchers = new ThreadLocal<Matcher[]>();
+
+    /**
+     * the names of the blocking environment variables field
+     */
+    private final List<String> envVars;
+
+    /**
+     * the {@link BlockingKeyExtractor} id given for each environment variable, or null for any
+     */
+    private final List<String> envVarSources;
+
+    private BlockingRules(List<Pattern> jobPatterns, List<String> envVars, List<String> envVarSources) {
+        this.jobPatterns = jobPatterns;
+        this.jobLiterals = new String[jobPatterns.size()];
+        for (int i = 0; i < jobLiterals.length; i++) {
+            String pattern = jobPatterns.get(i).pattern();
+            jobLiterals[i] = isLiteral(pattern) ? pattern : null;
+        }
+        this.envVars = envVars;
+        this.envVarSources = envVarSources;
+    }
+
+    /**
+     * Parses the line feed separated configuration fields. Invalid regular expressions are skipped.
+     * An environment variable line may select the {@link BlockingKeyExtractor} by its id: <code>name:id</code>.
+     *
+     * @param blockingJobs line feed separated list of blocking job regular expressions
+     * @param blockingEnvVars line feed separated list of blocking environment variables
+     * @return the parsed rules
+     */
+    public static BlockingRules parse(String blockingJobs, String blockingEnvVars) {
+        List<Pattern> jobPatterns = new ArrayList<Pattern>();
+        for (String line : lines(blockingJobs)) {
+            try {
+                jobPatterns.add(Pattern.compile(line));
+            } catch (PatternSyntaxException pse) {
+                LOG.log(Level.WARNING, "ignoring invalid blocking job regular expression [{0}]", line);
+            }
+        }
+        List<String> envVars = new ArrayList<String>();
+        List<String> envVarSources = new ArrayList<String>();
+        for (String line : lines(blockingEnvVars)) {
+            int separator = line.lastIndexOf(':');
+            if (separator > 0) {
+                envVars.add(line.substring(0, separator));
+                envVarSources.add(line.substring(separator + 1));
+            } else {
+                envVars.add(line);
+                envVarSources.add(null);
+            }
+        }
+        if (jobPatterns.isEmpty() && envVars.isEmpty()) {
+            return EMPTY;
+        }
+        return new BlockingRules(Collections.unmodifiableList(jobPatterns), Collections.unmodifiableList(envVars),
+                Collections.unmodifiableList(envVarSources));
+    }
+
+    /**
+     * Splits the given field into its non-empty lines.
+     */
+    private static List<String> lines(String field) {
+        if (StringUtils.isBlank(field)) {
+            return Collections.emptyList();
+        }
+        List<String> lines = new ArrayList<String>();
+        for (String line : field.split("\n")) {
+            if (line.length() > 0) {
+                lines.add(line);
+            }
+        }
+        return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * Returns true if there is nothing to check.
+     *
+     * @return true if there are neither job nor environment variable rules
+     */
+    public boolean isEmpty() {
+        return jobPatterns.isEmpty() && envVars.isEmpty();
+    }
+
+    /**
+     * Returns the compiled blocking job regular expressions.
+     *
+     * @return the compiled blocking job regular expressions
+     */
+    public List<Pattern> getJobPatterns() {
+        return jobPatterns;
+    }
+
+    /**
+     * Returns the blocking environment variable names.
+     *
+     * @return the blocking environment variable names
+     */
+    public List<String> getEnvVars() {
+        return envVars;
+    }
+
+    /**
+     * Returns the id of the {@link BlockingKeyExtractor} to read the given environment variable with.
+     *
+     * @param index the index of the environment variable in {@link #getEnvVars()}
+     * @return the extractor id or null to ask all extractors
+     */
+    public String getEnvVarSource(int index) {
+        return envVarSources.get(index);
+    }
+
+    /**
+     * Returns the first blocking job regular expression matching the given job name. A match giving up
+     * counts as match, marked with {@link #GAVE_UP}. Literal names are compared directly and the matchers of
+     * the other patterns are reused by the thread, so a check doesn't allocate.
+     *
+     * @param fullName the full name of a job
+     * @return the matching regular expression or null
+     */
+    public String matchJob(String fullName) {
+        Matcher[] matchers = null;
+        for (int i = 0; i < jobLiterals.length; i++) {
+            String literal = jobLiterals[i];
+            if (literal != null) {
+                if (literal.equals(fullName)) {
+                    return literal;
+                }
+                continue;
+            }
+            if (matchers == null) {
+                matchers = jobMatchers();
+            }
+            int match = match(matchers[i], fullName);
+            if (match != NO_MATCH) {
+                return rule(matchers[i].pattern().pattern(), match);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the matchers of the blocking job patterns of the current thread.
+     */
+    private Matcher[] jobMatchers() {
+        Matcher[] matchers = jobMatchers.get();
+        if (matchers == null) {
+            matchers = new Matcher[jobLiterals.length];
+            for (int i = 0; i < matchers.length; i++) {
+                matchers[i] = jobPatterns.get(i).matcher("");
+            }
+            jobMatchers.set(matchers);
+        }
+        return matchers;
+    }
+
+    /**
+     * Returns whether the given regular expression only matches itself.
+     *
+     * @param regex the regular expression
+     * @return true if it contains no regular expression syntax
+     */
+    static boolean isLiteral(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            if (REGEX_CHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches the given text with a bounded number of steps, so a pattern that backtracks catastrophically
+     * cannot stall the queue. A match giving up counts as match, so nothing runs that might be blocked.
+     *
+     * @param pattern the pattern
+     * @param text the text to match
+     * @return true if the whole text matches or the match gave up
+     */
+    static boolean matches(Pattern pattern, String text) {
+        return match(pattern, text) != NO_MATCH;
+    }
+
+    /**
+     * Matches the given text with a bounded number of steps, warning once per pattern that gives up.
+     *
+     * @param pattern the pattern
+     * @param text the text to match
+     * @return {@link #MATCH}, {@link #NO_MATCH} or {@link #TOO_EXPENSIVE}
+     */
+    static int match(Pattern pattern, String text) {
+        return match(pattern.matcher(""), text);
+    }
+
+    /**
+     * Matches the given text with a bounded number of steps, reusing the given matcher and the character sequence
+     * of the current thread.
+     *
+     * @param matcher the matcher of the pattern
+     * @param text the text to match
+     * @return {@link #MATCH}, {@link #NO_MATCH} or {@link #TOO_EXPENSIVE}
+     */
+    static int match(Matcher matcher, String text) {
+        try {
+            return matcher.reset(SEQUENCE.get().reset(text)).matches() ? MATCH : NO_MATCH;
+        } catch (BoundedCharSequence.LimitExceededException e) {
+            String pattern = matcher.pattern().pattern();
+            if (WARNED.add(pattern)) {
+                LOG.log(Level.WARNING, "blocking rule [" + pattern + "] is too expensive, blocking: " + e.getMessage());
+            }
+            return TOO_EXPENSIVE;
+        }
+    }
+
+    /**
+     * Returns the given rule, marked with {@link #GAVE_UP} if the match gave up.
+     */
+    static String rule(String rule, int match) {
+        return match == TOO_EXPENSIVE ? rule + " " + GAVE_UP : rule;
+    }
+
+    /**
+     * Returns whether the given rule of a blockage is marked with {@link #GAVE_UP}.
+     *
+     * @param rule the rule of a blockage
+     * @return true if the match of the rule gave up
+     */
+    public static boolean gaveUp(String rule) {
+        return rule != null && rule.endsWith(GAVE_UP);
+    }
+
+    /**
+     * Checks whether the value of a blocking environment variable of a running build blocks the value
+     * requested by the queue item. The requested value is treated as regular expression.
+     *
+     * @param runningValue the value in the running build
+     * @param requestedValue the value of the queue item
+     * @return true if the values match
+     */
+    public static boolean matchValue(String runningValue, String requestedValue) {
+        return matchValue(null, runningValue, requestedValue) != null;
+    }
+
+    /**
+     * Checks whether the value of a blocking environment variable of a running build blocks the value
+     * requested by the queue item, returning the rule to report.
+     *
+     * @param envVar the environment variable
+     * @param runningValue the value in the running build
+     * @param requestedValue the value of the queue item
+     * @return the environment variable, marked with {@link #GAVE_UP} if the match gave up, or null if the values
+     * don't match
+     */
+    public static String matchValue(String envVar, String runningValue, String requestedValue) {
+        if (runningValue == null || requestedValue == null) {
+            return null;
+        }
+        if (runningValue.equals(requestedValue)) {
+            return String.valueOf(envVar);
+        }
+        if (isLiteral(requestedValue)) {
+            return null;
+        }
+        try {
+            int match = match(Pattern.compile(requestedValue), runningValue);
+            return match != NO_MATCH ? rule(String.valueOf(envVar), match) : null;
+        } catch (PatternSyntaxException pse) {
+            return null;
+        }
+    }
+
+    /**
+     * The values a queue item requests for the blocking environment variables, by the index of the variable in
+     * {@link #getEnvVars()}. Values with regular expression syntax are compiled once per check, on first use, and
+     * their matchers are reused for all running builds.
+     */
+    public static final class RequestedValues {
+        private final String[] values;
+        private final boolean[] literal;
+        private final Matcher[] matchers;
+
+        /**
+         * Constructor
+         *
+         * @param values the requested values by environment variable index, null where the item has none
+         */
+        public RequestedValues(String[] values) {
+            this.values = values;
+            this.literal = new boolean[values.length];
+            this.matchers = new Matcher[values.length];
+            for (int i = 0; i < values.length; i++) {
+                literal[i] = values[i] == null || isLiteral(values[i]);
+            }
+        }
+
+        /**
+         * Returns the value requested for the environment variable with the given index.
+         *
+         * @param index the index of the environment variable
+         * @return the requested value or null
+         */
+        public String get(int index) {
+            return values[index];
+        }
+
+        /**
+         * Checks whether the value of a blocking environment variable of a running build blocks the value
+         * requested for it, like {@link BlockingRules#matchValue(String, String, String)}.
+         *
+         * @param index the index of the environment variable
+         * @param envVar the environment variable
+         * @param runningValue the value in the running build
+         * @return the environment variable, marked with {@link #GAVE_UP} if the match gave up, or null if the
+         * values don't match
+         */
+        public String match(int index, String envVar, String runningValue) {
+            String requestedValue = values[index];
+            if (runningValue == null || requestedValue == null) {
+                return null;
+            }
+            if (runningValue.equals(requestedValue)) {
+                return envVar;
+            }
+            if (literal[index]) {
+                return null;
+            }
+            Matcher matcher = matchers[index];
+            if (matcher == null) {
+                try {
+                    matcher = Pattern.compile(requestedValue).matcher("");
+                } catch (PatternSyntaxException pse) {
+                    literal[index] = true;
+                    return null;
+                }
+                matchers[index] = matcher;
+            }
+            int match = BlockingRules.match(matcher, runningValue);
+            return match != NO_MATCH ? rule(envVar, match) : null;
+        }
+    }
+}
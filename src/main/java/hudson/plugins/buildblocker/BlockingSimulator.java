@@ -0,0 +1,366 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+
+/**
+ * Offline capacity planning: replays a trace of build arrivals against a simulated pool of executors under
+ * candidate blocking rule sets, using the same {@link BlockingRules} matching as {@link BlockingJobsMonitor}.
+ *
+ * The trace is tab separated, one build per line: arrival time in milliseconds, job full name, duration in
+ * milliseconds and any number of <code>name=value</code> parameters. Lines starting with <code>#</code> are
+ * ignored. <code>/build-blocker/trace</code> exports the recent builds of a controller in this format.
+ *
+ * A rule set is a properties file with the entries <code>&lt;job&gt;.blockingJobs</code> and
+ * <code>&lt;job&gt;.blockingEnvVars</code>, lines separated by <code>\n</code> as in the job configuration.
+ *
+ * <pre>
+ * java -cp cog-bbp.jar:commons-lang.jar hudson.plugins.buildblocker.BlockingSimulator \
+ *     &lt;executors&gt; &lt;trace&gt; &lt;rules&gt;...
+ * </pre>
+ */
+public class BlockingSimulator {
+
+    private static final String BLOCKING_JOBS_SUFFIX = "." + BuildBlockerProperty.BLOCKING_JOBS_KEY;
+    private static final String BLOCKING_ENV_VARS_SUFFIX = "." + BuildBlockerProperty.BLOCKING_ENV_VARS;
+
+    /**
+     * Runs the simulation for every given rule set and prints the results.
+     *
+     * @param args number of executors, trace file and one or more rule set files
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: BlockingSimulator <executors> <trace> <rules>...");
+            System.exit(2);
+        }
+        int executors = Integer.parseInt(args[0]);
+        List<TraceEntry> trace = readTrace(open(args[1]));
+        PrintStream out = System.out;
+        out.println(trace.size() + " builds, " + executors + " executors");
+        for (int i = 2; i < args.length; i++) {
+            Result result = simulate(trace, readRules(open(args[i])), executors);
+            out.println(args[i] + ": makespan " + result.getMakespan() + " ms, utilization "
+                    + Math.round(result.getUtilization() * 1000) / 10.0 + " %, wait p50/p90/p99/max "
+                    + result.getWaitPercentile(50) + "/" + result.getWaitPercentile(90) + "/"
+                    + result.getWaitPercentile(99) + "/" + result.getWaitPercentile(100) + " ms");
+        }
+    }
+
+    private static Reader open(String fileName) throws IOException {
+        return new InputStreamReader(new FileInputStream(fileName), "UTF-8");
+    }
+
+    /**
+     * Reads a trace, sorted by arrival.
+     *
+     * @param reader the tab separated trace
+     * @return the builds of the trace
+     * @throws IOException
+     */
+    public static List<TraceEntry> readTrace(Reader reader) throws IOException {
+        List<TraceEntry> trace = new ArrayList<TraceEntry>();
+        BufferedReader lines = new BufferedReader(reader);
+        try {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length < 3) {
+                    throw new IOException("invalid trace line: " + line);
+                }
+                Map<String, String> params = new HashMap<String, String>();
+                for (int i = 3; i < fields.length; i++) {
+                    int separator = fields[i].indexOf('=');
+                    if (separator > 0) {
+                        params.put(fields[i].substring(0, separator), fields[i].substring(separator + 1));
+                    }
+                }
+                try {
+                    trace.add(new TraceEntry(Long.parseLong(fields[0].trim()), fields[1],
+                            Long.parseLong(fields[2].trim()), params));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid trace line: " + line);
+                }
+            }
+        } finally {
+            lines.close();
+        }
+        Collections.sort(trace, new Comparator<TraceEntry>() {
+            public int compare(TraceEntry a, TraceEntry b) {
+                return a.arrival < b.arrival ? -1 : a.arrival > b.arrival ? 1 : 0;
+            }
+        });
+        return trace;
+    }
+
+    /**
+     * Reads a rule set.
+     *
+     * @param reader the rule set properties
+     * @return the rules by job full name
+     * @throws IOException
+     */
+    public static Map<String, BlockingRules> readRules(Reader reader) throws IOException {
+        Properties properties = new Properties();
+        try {
+            properties.load(reader);
+        } finally {
+            reader.close();
+        }
+        Map<String, BlockingRules> rules = new HashMap<String, BlockingRules>();
+        for (String key : properties.stringPropertyNames()) {
+            String job;
+            if (key.endsWith(BLOCKING_JOBS_SUFFIX)) {
+                job = key.substring(0, key.length() - BLOCKING_JOBS_SUFFIX.length());
+            } else if (key.endsWith(BLOCKING_ENV_VARS_SUFFIX)) {
+                job = key.substring(0, key.length() - BLOCKING_ENV_VARS_SUFFIX.length());
+            } else {
+                continue;
+            }
+            rules.put(job, BlockingRules.parse(properties.getProperty(job + BLOCKING_JOBS_SUFFIX),
+                    properties.getProperty(job + BLOCKING_ENV_VARS_SUFFIX)));
+        }
+        return rules;
+    }
+
+    /**
+     * Replays the trace. Waiting builds are started in arrival order as soon as an executor is free and no
+     * running or buildable build blocks them. All executors are interchangeable: labels and nodes are not
+     * modelled, so builds waiting for a specific node don't hold back others as they may in Jenkins.
+     *
+     * @param trace the builds, sorted by arrival
+     * @param rules the rules by job full name
+     * @param executors the number of executors
+     * @return the result of the simulation
+     */
+    public static Result simulate(List<TraceEntry> trace, Map<String, BlockingRules> rules, int executors) {
+        if (executors < 1) {
+            throw new IllegalArgumentException("at least one executor is needed");
+        }
+        PriorityQueue<Running> running = new PriorityQueue<Running>();
+        LinkedList<TraceEntry> waiting = new LinkedList<TraceEntry>();
+        long[] waits = new long[trace.size()];
+        int started = 0;
+        int next = 0;
+        long busy = 0;
+        long first = trace.isEmpty() ? 0 : trace.get(0).arrival;
+        long last = first;
+
+        while (next < trace.size() || !waiting.isEmpty()) {
+            long now;
+            if (running.isEmpty() || (next < trace.size() && trace.get(next).arrival < running.peek().end)) {
+                now = trace.get(next).arrival;
+            } else {
+                now = running.peek().end;
+            }
+            while (!running.isEmpty() && running.peek().end <= now) {
+                running.poll();
+            }
+            while (next < trace.size() && trace.get(next).arrival <= now) {
+                waiting.add(trace.get(next++));
+            }
+
+            // builds that could start but find no free executor are buildable and block later builds, as in the queue
+            List<TraceEntry> buildable = new ArrayList<TraceEntry>();
+            for (Iterator<TraceEntry> it = waiting.iterator(); it.hasNext();) {
+                TraceEntry entry = it.next();
+                BlockingRules jobRules = rules.get(entry.job);
+                if (jobRules != null && (isBlockedByRunning(entry, jobRules, running)
+                        || isBlockedBy(entry, jobRules, buildable))) {
+                    continue;
+                }
+                if (running.size() < executors) {
+                    it.remove();
+                    running.add(new Running(entry, now + entry.duration));
+                    waits[started++] = now - entry.arrival;
+                    busy += entry.duration;
+                    last = Math.max(last, now + entry.duration);
+                } else {
+                    buildable.add(entry);
+                }
+            }
+        }
+        return new Result(last - first, busy, executors, waits);
+    }
+
+    /**
+     * Checks the given waiting build against the running builds like {@link BlockingJobsMonitor} does.
+     */
+    private static boolean isBlockedByRunning(TraceEntry entry, BlockingRules rules, Iterable<Running> running) {
+        for (Running run : running) {
+            if (blocks(entry, rules, run.entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks the given waiting build against the given buildable builds.
+     */
+    private static boolean isBlockedBy(TraceEntry entry, BlockingRules rules, List<TraceEntry> others) {
+        for (int i = 0; i < others.size(); i++) {
+            if (blocks(entry, rules, others.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the other build blocks the given waiting build under its rules.
+     */
+    private static boolean blocks(TraceEntry entry, BlockingRules rules, TraceEntry other) {
+        if (rules.matchJob(other.job) != null) {
+            return true;
+        }
+        for (String envVar : rules.getEnvVars()) {
+            if (BlockingRules.matchValue(other.params.get(envVar), entry.params.get(envVar))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A build of the trace.
+     */
+    public static final class TraceEntry {
+        private final long arrival;
+        private final String job;
+        private final long duration;
+        private final Map<String, String> params;
+
+        public TraceEntry(long arrival, String job, long duration, Map<String, String> params) {
+            this.arrival = arrival;
+            this.job = job;
+            this.duration = duration;
+            this.params = params;
+        }
+
+        public long getArrival() {
+            return arrival;
+        }
+
+        public String getJob() {
+            return job;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public Map<String, String> getParams() {
+            return params;
+        }
+    }
+
+    /**
+     * A simulated running build, ordered by end time.
+     */
+    private static final class Running implements Comparable<Running> {
+        private final TraceEntry entry;
+        private final long end;
+
+        Running(TraceEntry entry, long end) {
+            this.entry = entry;
+            this.end = end;
+        }
+
+        public int compareTo(Running other) {
+            return end < other.end ? -1 : end > other.end ? 1 : 0;
+        }
+    }
+
+    /**
+     * The outcome of a simulation.
+     */
+    public static final class Result {
+        private final long makespan;
+        private final long busy;
+        private final int executors;
+        private final long[] waits;
+
+        Result(long makespan, long busy, int executors, long[] waits) {
+            this.makespan = makespan;
+            this.busy = busy;
+            this.executors = executors;
+            this.waits = waits.clone();
+            Arrays.sort(this.waits);
+        }
+
+        /**
+         * Returns the time from the first arrival to the end of the last build.
+         *
+         * @return the makespan in milliseconds
+         */
+        public long getMakespan() {
+            return makespan;
+        }
+
+        /**
+         * Returns the share of the executor time spent building.
+         *
+         * @return the utilization between 0 and 1
+         */
+        public double getUtilization() {
+            return makespan > 0 ? (double) busy / ((double) makespan * executors) : 0;
+        }
+
+        /**
+         * Returns the given percentile of the time the builds waited for an executor or a blocker.
+         *
+         * @param percentile the percentile between 1 and 100
+         * @return the wait time in milliseconds
+         */
+        public long getWaitPercentile(int percentile) {
+            if (waits.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * waits.length) - 1;
+            return waits[Math.max(index, 0)];
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.queue.WorkUnit;
+import hudson.model.queue.SubTask;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable view of the running work and the buildable items, as seen by {@link BlockingJobsMonitor}.
+ *
+ * The current snapshot is built off the queue thread by {@link BlockingSnapshotRefresher} and published through an
+ * {@link AtomicReference}, so queue checks read it without walking the executors of every computer while the
+ * Queue lock is held. Queue events update the buildable items copy-on-write, so items made buildable in the
+ * current maintenance are seen by the checks that follow.
+ *
+ * Items that left the queue to start are kept as started work with their parameters until a refresh sees
+ * them on an executor: running, or assigned to an executor that has not created the build yet. So blocking
+ * environment variable values of a starting build are seen although it is neither queued nor running yet.
+ */
+public final class BlockingSnapshot {
+
+    /**
+     * the snapshot without any work
+     */
+    static final BlockingSnapshot EMPTY = new BlockingSnapshot(Collections.<Work>emptyList(),
+            Collections.<Work>emptyList(), 0);
+
+    /**
+     * the published snapshot
+     */
+    private static final AtomicReference<BlockingSnapshot> CURRENT = new AtomicReference<BlockingSnapshot>();
+
+    /**
+     * the running work, in executor order
+     */
+    private final List<Work> running;
+
+    /**
+     * the buildable and pending items, and the started items not running yet
+     */
+    private final List<Work> buildable;
+
+    /**
+     * the time the running work was read
+     */
+    private final long timestamp;
+
+    BlockingSnapshot(List<Work> running, List<Work> buildable, long timestamp) {
+        this.running = running;
+        this.buildable = buildable;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the published snapshot, building and publishing one if there is none yet.
+     *
+     * @return the published snapshot
+     */
+    public static BlockingSnapshot current() {
+        BlockingSnapshot snapshot = CURRENT.get();
+        if (snapshot == null) {
+            CURRENT.compareAndSet(null, capture());
+            snapshot = CURRENT.get();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Builds a snapshot from the live queue and executors and publishes it. Items made buildable or started
+     * while the snapshot was built are carried over; items removed meanwhile are dropped by the next refresh.
+     *
+     * @return the published snapshot
+     */
+    static BlockingSnapshot refresh() {
+        BlockingSnapshot before = CURRENT.get();
+        BlockingSnapshot snapshot = capture();
+        while (!CURRENT.compareAndSet(before, snapshot)) {
+            BlockingSnapshot now = CURRENT.get();
+            if (before != null && now != null) {
+                for (Work work : now.buildable) {
+                    int index = before.indexOf(work.itemId);
+                    boolean changed = index < 0 || before.buildable.get(index) != work;
+                    if (changed && (work.started || snapshot.indexOf(work.itemId) < 0)) {
+                        snapshot = snapshot.withBuildable(work);
+                    }
+                }
+            }
+            before = now;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the published snapshot, the next check builds a new one.
+     */
+    static void reset() {
+        CURRENT.set(null);
+    }
+
+    /**
+     * Builds a snapshot from the live queue and executors without publishing it.
+     *
+     * The queue is read before the executors and buildable items before pending ones, so an item moving on while
+     * the snapshot is built is seen at least once.
+     *
+     * @return a new snapshot
+     */
+    public static BlockingSnapshot capture() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return EMPTY;
+        }
+        Queue queue = jenkins.getQueue();
+        List<Work> buildable = new ArrayList<Work>();
+        for (Queue.BuildableItem item : queue.getBuildableItems()) {
+            buildable.add(Work.of(item));
+        }
+        for (Queue.BuildableItem item : queue.getPendingItems()) {
+            buildable.add(Work.of(item));
+        }
+
+        long timestamp = System.currentTimeMillis();
+        List<Work> running = new ArrayList<Work>();
+        for (Computer computer : jenkins.getComputers()) {
+            addRunning(computer.getExecutors(), running, buildable);
+            addRunning(computer.getOneOffExecutors(), running, buildable);
+        }
+        return new BlockingSnapshot(Collections.unmodifiableList(running), Collections.unmodifiableList(buildable),
+                timestamp);
+    }
+
+    /**
+     * Adds the work running on the given executors, and the items assigned to them that are not running yet.
+     */
+    private static void addRunning(List<? extends Executor> executors, List<Work> running, List<Work> buildable) {
+        for (int i = 0; i < executors.size(); i++) {
+            Executor executor = executors.get(i);
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable == null) {
+                WorkUnit workUnit = executor.getCurrentWorkUnit();
+                if (workUnit != null && workUnit.context != null) {
+                    buildable.add(Work.started(workUnit.context.item));
+                }
+                continue;
+            }
+            if (executable instanceof Run && !((Run<?, ?>) executable).isBuilding()) {
+                continue;
+            }
+            SubTask subTask = executable.getParent();
+            running.add(new Work(subTask, BlockingTasks.fullName(subTask.getOwnerTask()), executable, -1));
+        }
+    }
+
+    /**
+     * Publishes a copy of the current snapshot with the given item added to the buildable items.
+     *
+     * @param item the item that became buildable
+     */
+    static void addBuildable(Queue.BuildableItem item) {
+        Work work = Work.of(item);
+        BlockingSnapshot snapshot;
+        do {
+            snapshot = CURRENT.get();
+            if (snapshot == null) {
+                // the first snapshot reads the item from the queue
+                return;
+            }
+        } while (!CURRENT.compareAndSet(snapshot, snapshot.withBuildable(work)));
+    }
+
+    /**
+     * Publishes a copy of the current snapshot with the given item replaced by started work, which keeps
+     * the item's parameters until a refresh sees it on an executor.
+     *
+     * @param item the item that left the queue to start
+     */
+    static void addStarted(Queue.Item item) {
+        Work work = Work.started(item);
+        BlockingSnapshot snapshot;
+        do {
+            snapshot = CURRENT.get();
+            if (snapshot == null) {
+                // the first snapshot reads the item from its executor
+                return;
+            }
+        } while (!CURRENT.compareAndSet(snapshot, snapshot.withBuildable(work)));
+    }
+
+    /**
+     * Publishes a copy of the current snapshot without the given item.
+     *
+     * @param id the id of the item that is no longer buildable
+     */
+    static void removeBuildable(long id) {
+        BlockingSnapshot snapshot;
+        do {
+            snapshot = CURRENT.get();
+            if (snapshot == null || snapshot.indexOf(id) < 0) {
+                return;
+            }
+        } while (!CURRENT.compareAndSet(snapshot, snapshot.withoutBuildable(id)));
+    }
+
+    /**
+     * Returns a copy of this snapshot with the given buildable work replacing the item with the same id.
+     */
+    BlockingSnapshot withBuildable(Work work) {
+        List<Work> copy = new ArrayList<Work>(buildable.size() + 1);
+        for (Work w : buildable) {
+            if (w.itemId != work.itemId) {
+                copy.add(w);
+            }
+        }
+        copy.add(work);
+        return new BlockingSnapshot(running, Collections.unmodifiableList(copy), timestamp);
+    }
+
+    /**
+     * Returns a copy of this snapshot without the buildable item with the given id.
+     */
+    BlockingSnapshot withoutBuildable(long id) {
+        List<Work> copy = new ArrayList<Work>(buildable);
+        copy.remove(indexOf(id));
+        return new BlockingSnapshot(running, Collections.unmodifiableList(copy), timestamp);
+    }
+
+    /**
+     * Returns the index of the buildable item with the given id, or -1.
+     */
+    private int indexOf(long id) {
+        for (int i = 0; i < buildable.size(); i++) {
+            if (buildable.get(i).itemId == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the running work.
+     *
+     * @return the running work, in executor order
+     */
+    public List<Work> getRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the buildable work.
+     *
+     * @return the buildable and pending items, and the started items not running yet
+     */
+    public List<Work> getBuildable() {
+        return buildable;
+    }
+
+    /**
+     * Returns the time the running work was read.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * A running executable or a buildable queue item.
+     */
+    public static final class Work {
+
+        private final SubTask task;
+        private final String fullName;
+        private final Queue.Executable executable;
+        private final long itemId;
+        private final boolean started;
+        private final Map<String, String> parameters;
+
+        Work(SubTask task, String fullName, Queue.Executable executable, long itemId) {
+            this(task, fullName, executable, itemId, false, Collections.<String, String>emptyMap());
+        }
+
+        private Work(SubTask task, String fullName, Queue.Executable executable, long itemId, boolean started,
+                Map<String, String> parameters) {
+            this.task = task;
+            this.fullName = fullName;
+            this.executable = executable;
+            this.itemId = itemId;
+            this.started = started;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Returns the work of a buildable item.
+         */
+        static Work of(Queue.BuildableItem item) {
+            return new Work(item.task, BlockingTasks.fullName(item.task), null, (long) item.getId());
+        }
+
+        /**
+         * Returns the work of an item that left the queue to start, with its parameters.
+         */
+        static Work started(Queue.Item item) {
+            return new Work(item.task, BlockingTasks.fullName(item.task), null, (long) item.getId(), true,
+                    BlockingJobsMonitor.itemParameters(item));
+        }
+
+        /**
+         * Returns the running or buildable task.
+         *
+         * @return the task
+         */
+        public SubTask getTask() {
+            return task;
+        }
+
+        /**
+         * Returns the full name of the job matched against the blocking jobs.
+         *
+         * @return the full name, or null if the task doesn't belong to a job
+         */
+        public String getFullName() {
+            return fullName;
+        }
+
+        /**
+         * Returns the running executable.
+         *
+         * @return the executable, or null for a buildable item
+         */
+        public Queue.Executable getExecutable() {
+            return executable;
+        }
+
+        /**
+         * Returns the id of the buildable item.
+         *
+         * @return the queue item id, or -1 for running work
+         */
+        public long getItemId() {
+            return itemId;
+        }
+
+        /**
+         * Returns whether the item left the queue to start but is not running yet.
+         *
+         * @return true for a started item
+         */
+        public boolean isStarted() {
+            return started;
+        }
+
+        /**
+         * Returns the parameters of a started item.
+         *
+         * @return the parameter values by name, empty for other work
+         */
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds the published {@link BlockingSnapshot} at a short interval and whenever a build starts or completes.
+ *
+ * Refreshes triggered by events are coalesced: while one is scheduled, further events don't schedule another.
+ * After a refresh the queue maintenance is scheduled, so items blocked by work that has just completed are
+ * re-evaluated right away.
+ */
+@Extension
+public class BlockingSnapshotRefresher extends PeriodicWork {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(BlockingSnapshotRefresher.class.getName());
+
+    /**
+     * the refresh interval in milliseconds
+     */
+    private static final long PERIOD = Long.getLong(BlockingSnapshotRefresher.class.getName() + ".period", 1000L);
+
+    /**
+     * whether a refresh triggered by an event is scheduled
+     */
+    private static final AtomicBoolean SCHEDULED = new AtomicBoolean();
+
+    /**
+     * Drops the snapshot of a previous Jenkins instance in the same JVM.
+     */
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void reset() {
+        BlockingSnapshot.reset();
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return PERIOD;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        BlockingSnapshot.refresh();
+    }
+
+    /**
+     * Schedules a refresh of the snapshot unless one is scheduled already.
+     */
+    static void scheduleRefresh() {
+        if (!SCHEDULED.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                SCHEDULED.set(false);
+                try {
+                    BlockingSnapshot.refresh();
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "could not refresh the blocking snapshot", e);
+                    return;
+                }
+                Jenkins jenkins = Jenkins.getInstance();
+                if (jenkins != null) {
+                    jenkins.getQueue().scheduleMaintenance();
+                }
+            }
+        });
+    }
+
+    /**
+     * Refreshes the snapshot when builds start or complete.
+     */
+    @Extension
+    public static class RunEvents extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            scheduleRefresh();
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            scheduleRefresh();
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * Keeps the buildable items of the snapshot up to date between refreshes.
+     *
+     * Items leaving the queue to start are kept with their parameters until a refresh sees them on an executor.
+     */
+    @Extension
+    public static class QueueEvents extends QueueListener {
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem bi) {
+            BlockingSnapshot.addBuildable(bi);
+        }
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            BlockingSnapshot.removeBuildable(wi.getId());
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            BlockingSnapshot.removeBuildable(bi.getId());
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (li.isCancelled()) {
+                BlockingSnapshot.removeBuildable(li.getId());
+            } else {
+                BlockingSnapshot.addStarted(li);
+                scheduleRefresh();
+            }
+        }
+    }
+}
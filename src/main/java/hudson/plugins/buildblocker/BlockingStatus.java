@@ -0,0 +1,362 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the queue items currently blocked by this plugin.
+ *
+ * The state carries a version that is incremented only when the blocking graph changes,
+ * i.e. an item gets blocked, unblocked, leaves the queue or is blocked by another task or rule.
+ * Clients use the version as an ETag and may wait for it to change.
+ *
+ * Whenever an item stops being blocked by a task and rule, the interval is recorded in the
+ * {@link BlockedTimeHistory}.
+ */
+@Extension
+public class BlockingStatus extends QueueListener {
+
+    /**
+     * the blocked items by queue id
+     */
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+
+    /**
+     * the version of the blocking graph
+     */
+    private long version;
+
+    /**
+     * the history receiving the closed intervals, or null to look it up on first use
+     */
+    private BlockedTimeHistory history;
+
+    /**
+     * Constructor used by Jenkins, recording into the history of this controller
+     */
+    public BlockingStatus() {
+    }
+
+    /**
+     * Constructor recording into the given history
+     *
+     * @param history the history receiving the closed intervals
+     */
+    BlockingStatus(BlockedTimeHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Returns the registered instance.
+     *
+     * @return the registered instance or null if Jenkins is not running
+     */
+    public static BlockingStatus get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return jenkins.getExtensionList(QueueListener.class).get(BlockingStatus.class);
+    }
+
+    /**
+     * Records that the given item is blocked.
+     *
+     * @param id the queue item id
+     * @param task the full name of the blocked task
+     * @param inQueueSince the time the item entered the queue
+     * @param blocker the display name of the blocking task
+     * @param rule the matched line of the job configuration
+     */
+    public void blocked(long id, String task, long inQueueSince, String blocker, String rule) {
+        blocked(id, task, inQueueSince, blocker, rule, false);
+    }
+
+    /**
+     * Records that the given item is blocked.
+     *
+     * @param id the queue item id
+     * @param task the full name of the blocked task
+     * @param inQueueSince the time the item entered the queue
+     * @param blocker the display name of the blocking task
+     * @param rule the matched line of the job configuration
+     * @param resolving true if the environment of the blocking task is still being resolved
+     */
+    public void blocked(long id, String task, long inQueueSince, String blocker, String rule, boolean resolving) {
+        blocked(id, task, inQueueSince, blocker, null, rule, resolving);
+    }
+
+    /**
+     * Records that the given item is blocked.
+     *
+     * @param id the queue item id
+     * @param task the full name of the blocked task
+     * @param inQueueSince the time the item entered the queue
+     * @param blocker the display name of the blocking task
+     * @param blockerJob the full name of the blocking job, or null if it is not a local job
+     * @param rule the matched line of the job configuration
+     * @param resolving true if the environment of the blocking task is still being resolved
+     */
+    public synchronized void blocked(long id, String task, long inQueueSince, String blocker, String blockerJob,
+            String rule, boolean resolving) {
+        Entry existing = entries.get(id);
+        long now = System.currentTimeMillis();
+        if (existing != null && existing.blocker.equals(blocker) && existing.rule.equals(rule)) {
+            if (existing.resolving == resolving) {
+                return;
+            }
+            // still the same blockage, only its environment got resolved
+            entries.put(id, new Entry(id, task, inQueueSince, existing.blockedSince, blocker, blockerJob, rule,
+                    resolving));
+        } else {
+            if (existing != null) {
+                close(existing, now);
+            }
+            entries.put(id, new Entry(id, task, inQueueSince, now, blocker, blockerJob, rule, resolving));
+        }
+        changed();
+    }
+
+    /**
+     * Records that the given item is not blocked (anymore).
+     *
+     * @param id the queue item id
+     */
+    public synchronized void unblocked(long id) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Entry removed = entries.remove(id);
+        if (removed != null) {
+            close(removed, System.currentTimeMillis());
+            changed();
+        }
+    }
+
+    /**
+     * Returns the current version of the blocking graph.
+     *
+     * @return the current version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Waits until the version differs from the given one or the timeout elapses.
+     *
+     * @param knownVersion the version the caller already knows
+     * @param timeoutMillis the maximum time to wait
+     * @return the current version
+     * @throws InterruptedException
+     */
+    public synchronized long awaitChange(long knownVersion, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (version == knownVersion && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return version;
+    }
+
+    /**
+     * Returns the blocked items as JSON, with the waiting time computed for the given point in time.
+     *
+     * @param now the current time
+     * @return the blocked items and the version they belong to
+     */
+    public JSONObject toJSON(long now) {
+        return toJSON(now, null);
+    }
+
+    /**
+     * Returns the blocked items accepted by the given filter as JSON, with the waiting time computed for the
+     * given point in time.
+     *
+     * @param now the current time
+     * @param filter the filter, e.g. on the permissions of the caller, or null for all items
+     * @return the accepted blocked items and the version they belong to
+     */
+    public synchronized JSONObject toJSON(long now, EntryFilter filter) {
+        JSONArray items = new JSONArray();
+        for (Entry entry : entries.values()) {
+            if (filter != null && !filter.accept(entry)) {
+                continue;
+            }
+            JSONObject json = new JSONObject();
+            json.put("id", entry.id);
+            json.put("task", entry.task);
+            json.put("blocker", entry.blocker);
+            json.put("rule", entry.rule);
+            json.put("resolving", entry.resolving);
+            json.put("inQueueSince", entry.inQueueSince);
+            json.put("blockedSince", entry.blockedSince);
+            json.put("waitingMillis", now - entry.inQueueSince);
+            items.add(json);
+        }
+        JSONObject json = new JSONObject();
+        json.put("version", version);
+        json.put("items", items);
+        return json;
+    }
+
+    /**
+     * Returns the blocked item with the given id.
+     *
+     * @param id the queue item id
+     * @return the blocked item or null if it is not blocked by this plugin
+     */
+    public synchronized Entry getEntry(long id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Returns a copy of the currently blocked items.
+     *
+     * @return the currently blocked items
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Forgets items that left the queue, either because they started or were cancelled.
+     *
+     * @param li the item that left the queue
+     */
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        unblocked(li.getId());
+    }
+
+    /**
+     * Records the interval the given entry was blocked, by the full name of the blocking job if it is local.
+     */
+    private void close(Entry entry, long now) {
+        if (history == null) {
+            history = BlockedTimeHistory.get();
+        }
+        if (history != null) {
+            String blocker = entry.blockerJob != null ? entry.blockerJob : entry.blocker;
+            history.record(new BlockedTimeHistory.Interval(entry.task, blocker, entry.rule, entry.blockedSince, now));
+        }
+    }
+
+    /**
+     * Increments the version and wakes up waiting clients.
+     */
+    private void changed() {
+        version++;
+        notifyAll();
+    }
+
+    /**
+     * A blocked queue item.
+     */
+    public static final class Entry {
+        private final long id;
+        private final String task;
+        private final long inQueueSince;
+        private final long blockedSince;
+        private final String blocker;
+        private final String blockerJob;
+        private final String rule;
+        private final boolean resolving;
+
+        private Entry(long id, String task, long inQueueSince, long blockedSince, String blocker, String blockerJob,
+                String rule, boolean resolving) {
+            this.id = id;
+            this.task = task;
+            this.inQueueSince = inQueueSince;
+            this.blockedSince = blockedSince;
+            this.blocker = blocker;
+            this.blockerJob = blockerJob;
+            this.rule = rule;
+            this.resolving = resolving;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        public long getInQueueSince() {
+            return inQueueSince;
+        }
+
+        public long getBlockedSince() {
+            return blockedSince;
+        }
+
+        public String getBlocker() {
+            return blocker;
+        }
+
+        /**
+         * Returns the full name of the blocking job.
+         *
+         * @return the full name, or null if the blocker is not a local job, e.g. on another controller
+         */
+        public String getBlockerJob() {
+            return blockerJob;
+        }
+
+        public String getRule() {
+            return rule;
+        }
+
+        public boolean isResolving() {
+            return resolving;
+        }
+    }
+
+    /**
+     * Selects the blocked items to return.
+     */
+    public interface EntryFilter {
+
+        /**
+         * Returns whether the given blocked item is returned.
+         *
+         * @param entry the blocked item
+         * @return true to return the item
+         */
+        boolean accept(Entry entry);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Job;
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps queue tasks to the jobs matched against the blocking job expressions.
+ *
+ * Running work is not only made of {@link hudson.model.AbstractProject}s: Pipeline builds run on flyweight
+ * executors with their job as task, and their node steps run placeholder tasks owned by that job. The table
+ * below is searched once per task class, first match wins; the result is cached, so a lookup is a map access
+ * and tasks of unknown types resolve to no job instead of failing a cast.
+ */
+public final class BlockingTasks {
+
+    /**
+     * the maximum number of owner tasks followed
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * the resolvers by task type, most specific first
+     */
+    private static final List<Entry> TABLE;
+
+    static {
+        List<Entry> table = new ArrayList<Entry>();
+        // a matrix configuration blocks and is blocked as its matrix project
+        table.add(new Entry(MatrixConfiguration.class, new Resolver() {
+            public Job<?, ?> resolve(Queue.Task task, int depth) {
+                return ((MatrixConfiguration) task).getParent();
+            }
+        }));
+        table.add(new Entry(Job.class, new Resolver() {
+            public Job<?, ?> resolve(Queue.Task task, int depth) {
+                return (Job<?, ?>) task;
+            }
+        }));
+        // other tasks, e.g. Pipeline node steps, block as the job owning them
+        table.add(new Entry(Queue.Task.class, new Resolver() {
+            public Job<?, ?> resolve(Queue.Task task, int depth) {
+                Queue.Task owner = task.getOwnerTask();
+                return owner != null && owner != task ? jobOf(owner, depth + 1) : null;
+            }
+        }));
+        TABLE = Collections.unmodifiableList(table);
+    }
+
+    /**
+     * the resolvers by concrete task class, filled on first use
+     */
+    private static final ConcurrentMap<Class<?>, Resolver> RESOLVERS = new ConcurrentHashMap<Class<?>, Resolver>();
+
+    private BlockingTasks() {
+    }
+
+    /**
+     * Returns the job the given task blocks and is blocked as.
+     *
+     * @param task the queued or running task
+     * @return the job, or null if the task doesn't belong to a job
+     */
+    public static Job<?, ?> jobOf(Queue.Task task) {
+        return jobOf(task, 0);
+    }
+
+    /**
+     * Returns the full name of the job the given task blocks and is blocked as.
+     *
+     * @param task the queued or running task
+     * @return the full name of the job, or null if the task doesn't belong to a job
+     */
+    public static String fullName(Queue.Task task) {
+        Job<?, ?> job = jobOf(task);
+        return job != null ? job.getFullName() : null;
+    }
+
+    private static Job<?, ?> jobOf(Queue.Task task, int depth) {
+        if (task == null || depth > MAX_DEPTH) {
+            return null;
+        }
+        return resolverFor(task.getClass()).resolve(task, depth);
+    }
+
+    /**
+     * Returns the resolver of the first table entry the given class is assignable to.
+     */
+    private static Resolver resolverFor(Class<?> type) {
+        Resolver resolver = RESOLVERS.get(type);
+        if (resolver == null) {
+            for (Entry entry : TABLE) {
+                if (entry.type.isAssignableFrom(type)) {
+                    resolver = entry.resolver;
+                    break;
+                }
+            }
+            RESOLVERS.putIfAbsent(type, resolver);
+        }
+        return resolver;
+    }
+
+    /**
+     * Resolves tasks of one type.
+     */
+    private interface Resolver {
+        Job<?, ?> resolve(Queue.Task task, int depth);
+    }
+
+    /**
+     * A task type and its resolver.
+     */
+    private static final class Entry {
+
+        private final Class<?> type;
+        private final Resolver resolver;
+
+        Entry(Class<?> type, Resolver resolver) {
+            this.type = type;
+            this.resolver = resolver;
+        }
+    }
+}
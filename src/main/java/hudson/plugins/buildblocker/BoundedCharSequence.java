@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+/**
+ * Read-only view of a string that limits how often the regular expression engine may read it.
+ *
+ * {@link java.util.regex.Matcher} reads the input through {@link #charAt(int)} only, so the number of calls
+ * bounds the backtracking a single match can do. Exceeding the budget or interrupting the thread aborts the
+ * match with a {@link LimitExceededException}. An instance can be {@link #reset(String) reset} to match another
+ * text with the same budget, so a thread can reuse it together with its {@link java.util.regex.Matcher}.
+ */
+public final class BoundedCharSequence implements CharSequence {
+
+    /**
+     * the default number of character reads allowed per match
+     */
+    public static final int DEFAULT_MAX_STEPS = Integer.getInteger(BoundedCharSequence.class.getName() + ".maxSteps", 100000);
+
+    /**
+     * how often the interrupt flag is checked
+     */
+    private static final int INTERRUPT_CHECK_MASK = 0x3FF;
+
+    /**
+     * the wrapped text
+     */
+    private String text;
+
+    /**
+     * the number of character reads allowed
+     */
+    private final int maxSteps;
+
+    /**
+     * the number of character reads so far
+     */
+    private int steps;
+
+    /**
+     * Constructor
+     *
+     * @param text the text to match
+     * @param maxSteps the number of character reads allowed
+     */
+    public BoundedCharSequence(String text, int maxSteps) {
+        this.text = text;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Wraps the given text and restores the full budget.
+     *
+     * @param text the text to match next
+     * @return this sequence
+     */
+    public BoundedCharSequence reset(String text) {
+        this.text = text;
+        this.steps = 0;
+        return this;
+    }
+
+    public char charAt(int index) {
+        steps++;
+        if (steps > maxSteps) {
+            throw new LimitExceededException("regular expression gave up after " + maxSteps + " steps on [" + text + "]");
+        }
+        if ((steps & INTERRUPT_CHECK_MASK) == 0 && Thread.currentThread().isInterrupted()) {
+            throw new LimitExceededException("regular expression interrupted on [" + text + "]");
+        }
+        return text.charAt(index);
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Thrown when a match exceeds its budget or the matching thread is interrupted.
+     */
+    public static class LimitExceededException extends RuntimeException {
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+}
@@ -34,6 +34,7 @@ import org.kohsuke.stapler.QueryParameter;
 import hudson.util.FormValidation;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
@@ -60,6 +61,7 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
      */
     public static final String BLOCKING_JOBS_KEY = "blockingJobs";
     public static final String BLOCKING_ENV_VARS = "blockingEnvVars";
+    public static final String COALESCE_QUEUED_BUILDS = "coalesceQueuedBuilds";
 
     /**
      * flag if build blocker should be used
@@ -74,6 +76,15 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
      * the blockingEnvVars names that block the build if running
      */
     private String blockingEnvVars;
+    /**
+     * flag if older queued builds blocked on the same environment variable value should be cancelled
+     */
+    private boolean coalesceQueuedBuilds;
+
+    /**
+     * the monitor for the current configuration, created on first use
+     */
+    private transient volatile BlockingJobsMonitor monitor;
 
     /**
      * Returns true if the build blocker is enabled.
@@ -110,6 +121,7 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
      */
     public void setBlockingJobs(String blockingJobs) {
         this.blockingJobs = blockingJobs;
+        this.monitor = null;
     }
 
     /**
@@ -128,6 +140,40 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
      */
     public void setBlockingEnvVars(String blockingEnvVars) {
         this.blockingEnvVars = blockingEnvVars;
+        this.monitor = null;
+    }
+
+    /**
+     * Returns true if older queued builds blocked on the same environment variable value are cancelled.
+     *
+     * @return true if queued builds are coalesced
+     */
+    public boolean isCoalesceQueuedBuilds() {
+        return coalesceQueuedBuilds;
+    }
+
+    /**
+     * Sets the coalesce queued builds flag.
+     *
+     * @param coalesceQueuedBuilds the coalesce queued builds flag
+     */
+    public void setCoalesceQueuedBuilds(boolean coalesceQueuedBuilds) {
+        this.coalesceQueuedBuilds = coalesceQueuedBuilds;
+    }
+
+    /**
+     * Returns the monitor checking the configured blocking jobs and environment variables.
+     * The monitor is immutable and shared by all queue checks until the configuration changes.
+     *
+     * @return the monitor for the current configuration
+     */
+    public BlockingJobsMonitor getMonitor() {
+        BlockingJobsMonitor result = monitor;
+        if (result == null) {
+            result = new BlockingJobsMonitor(blockingJobs, blockingEnvVars);
+            monitor = result;
+        }
+        return result;
     }
 
     /**
@@ -182,6 +228,10 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
                 } catch (JSONException e) {
                     LOG.log(Level.WARNING, "could not get blockingBranches from " + formData.toString());
                 }
+                JSONObject blockerData = formData.optJSONObject(USE_BUILD_BLOCKER);
+                if (blockerData != null) {
+                    buildBlockerProperty.setCoalesceQueuedBuilds(blockerData.optBoolean(COALESCE_QUEUED_BUILDS));
+                }
             }
 
             return buildBlockerProperty;
@@ -205,12 +255,59 @@ public class BuildBlockerProperty extends JobProperty<Job<?, ?>> {
                                 + pse.getDescription());
                     }
                 }
+                for (String blockingJob : listJobs) {
+                    String nested = RegexSafety.findNestedQuantifier(blockingJob);
+                    if (nested != null) {
+                        return FormValidation.warning("Regular expression ["
+                                + blockingJob + "] may backtrack excessively because of the repeated group "
+                                + nested + "; it is given up on long job names");
+                    }
+                }
                 return FormValidation.ok();
             } else {
                 return FormValidation.ok();
             }
         }
 
+        /**
+         * Check the blocking jobs field whenever it changes
+         */
+        public FormValidation doCheckBlockingJobs(@QueryParameter final String value) {
+            return doCheckRegex(value);
+        }
+
+        /**
+         * Check the blocking environment variables field whenever it changes: the id after a ':' must name a
+         * registered {@link BlockingKeyExtractor}, otherwise the variable would never block.
+         */
+        public FormValidation doCheckBlockingEnvVars(@QueryParameter final String value) {
+            if (StringUtils.isBlank(value)) {
+                return FormValidation.ok();
+            }
+            for (String line : value.split("\n")) {
+                int separator = line.lastIndexOf(':');
+                if (line.length() == 0 || separator < 0) {
+                    continue;
+                }
+                String source = line.substring(separator + 1);
+                if (separator == 0) {
+                    return FormValidation.error("Missing environment variable name in [" + line + "]");
+                }
+                if (source.length() == 0) {
+                    return FormValidation.error("Missing extractor id after ':' in [" + line + "]");
+                }
+                List<String> ids = new ArrayList<String>();
+                for (BlockingKeyExtractor extractor : BlockingKeyExtractor.all()) {
+                    ids.add(extractor.getId());
+                }
+                if (!ids.contains(source)) {
+                    return FormValidation.error("Unknown extractor id [" + source + "] in [" + line
+                            + "], known ids: " + StringUtils.join(ids, ", "));
+                }
+            }
+            return FormValidation.ok();
+        }
+
         /**
          * Returns always true a it can be used in all types of jobs.
          *
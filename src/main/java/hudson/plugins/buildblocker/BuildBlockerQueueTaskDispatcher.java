@@ -25,12 +25,10 @@
 package hudson.plugins.buildblocker;
 
 import hudson.Extension;
-import hudson.matrix.MatrixConfiguration;
-import hudson.model.AbstractProject;
+import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
-import hudson.model.queue.SubTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -71,28 +69,44 @@ public class BuildBlockerQueueTaskDispatcher extends QueueTaskDispatcher {
     @Override
     @SuppressWarnings("unchecked")
     public CauseOfBlockage canRun(Queue.Item item) {
-        if(item.task instanceof AbstractProject) {
-            AbstractProject project = (AbstractProject) item.task;
+        if(item.task instanceof Job) {
+            Job<?, ?> project = (Job<?, ?>) item.task;
 
             BuildBlockerProperty property = (BuildBlockerProperty) project.getProperty(BuildBlockerProperty.class);
 
             if(property != null) {
-                String blockingJobs = property.getBlockingJobs();
-                String blockingEnvVars = property.getBlockingEnvVars();
+                BlockingJobsMonitor monitor = property.getMonitor();
+                if(monitor.getRules().isEmpty()) {
+                    return super.canRun(item);
+                }
 
-                SubTask subTask = null;
+                Blockage blockage = null;
                 try {
-                    subTask = new BlockingJobsMonitor(blockingJobs, blockingEnvVars).getBlockingJob(item);
+                    blockage = monitor.findBlockage(item, BlockingSnapshot.current());
                 } catch (InterruptedException ex) {
                     Logger.getLogger(BuildBlockerQueueTaskDispatcher.class.getName()).log(Level.SEVERE, null, ex);
                 }
 
-                if(subTask != null) {
-                    if(subTask instanceof MatrixConfiguration) {
-                        subTask = ((MatrixConfiguration) subTask).getParent();
+                BlockingStatus status = BlockingStatus.get();
+                if(blockage != null) {
+                    String blockerName = blockage.getBlockerName();
+                    if(status != null) {
+                        String blockerJob = blockage.getTask() != null
+                                ? BlockingTasks.fullName(blockage.getTask().getOwnerTask()) : null;
+                        status.blocked(item.getId(), project.getFullName(), item.getInQueueSince(), blockerName,
+                                blockerJob, blockage.getRule(), blockage.isResolving());
                     }
 
-                    return CauseOfBlockage.fromMessage(Messages._BlockingJobIsRunning(item.getInQueueForString(), subTask.getDisplayName()));
+                    if(blockage.isResolving()) {
+                        return CauseOfBlockage.fromMessage(Messages._ResolvingEnvironment(item.getInQueueForString(), blockerName));
+                    }
+                    if(BlockingRules.gaveUp(blockage.getRule())) {
+                        return CauseOfBlockage.fromMessage(Messages._TooExpensiveRule(item.getInQueueForString(), blockerName, blockage.getRule()));
+                    }
+                    return CauseOfBlockage.fromMessage(Messages._BlockingJobIsRunning(item.getInQueueForString(), blockerName));
+                }
+                if(status != null) {
+                    status.unblocked(item.getId());
                 }
             }
         }
@@ -0,0 +1,359 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.matrix.MatrixProject;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.RootAction;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exposes the structured blocking state under <code>/build-blocker/status</code>, so clients
+ * don't need to parse the "why" text of every queue item.
+ *
+ * Only items of jobs the caller can read are returned, and their blocker only if the caller can read the blocking
+ * job as well; blockers on other controllers need Extended Read on the blocked job.
+ *
+ * The response carries an ETag derived from the {@link BlockingStatus} version and honours
+ * <code>If-None-Match</code>. With <code>?wait=seconds</code> and a matching
+ * <code>If-None-Match</code>, the request is held until the blocking graph changes or the
+ * timeout elapses (long-poll).
+ *
+ * The index page and <code>/build-blocker/statistics</code> show the blocked time percentiles per job and
+ * per blocker recorded in the {@link BlockedTimeHistory}, aggregated over the intervals the caller could see in the
+ * status.
+ *
+ * <code>/build-blocker/trace</code> exports the recent builds as input for the {@link BlockingSimulator}.
+ */
+@Extension
+public class BuildBlockerStatusAction implements RootAction {
+
+    /**
+     * the upper limit of the long-poll timeout in seconds
+     */
+    private static final int MAX_WAIT_SECONDS = 60;
+
+    /**
+     * the default number of builds per job exported by the trace
+     */
+    private static final int TRACE_BUILDS_PER_JOB = 100;
+
+    /**
+     * distinguishes the versions of this boot from those of earlier ones in ETags
+     */
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    public String getDisplayName() {
+        return Messages.StatusDisplayName();
+    }
+
+    public String getUrlName() {
+        return "build-blocker";
+    }
+
+    /**
+     * Renders the blocked queue items as JSON.
+     *
+     * @param req stapler request
+     * @param rsp stapler response
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void doStatus(StaplerRequest req, StaplerResponse rsp) throws IOException, InterruptedException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+        BlockingStatus status = BlockingStatus.get();
+        if (status == null) {
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        long version = status.getVersion();
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (etag(version).equals(ifNoneMatch)) {
+            int wait = Math.min(parseInt(req.getParameter("wait"), 0), MAX_WAIT_SECONDS);
+            if (wait > 0) {
+                version = status.awaitChange(version, wait * 1000L);
+            }
+            if (etag(version).equals(ifNoneMatch)) {
+                rsp.setHeader("ETag", ifNoneMatch);
+                rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        JSONObject json = status.toJSON(System.currentTimeMillis(), new BlockingStatus.EntryFilter() {
+            public boolean accept(BlockingStatus.Entry entry) {
+                if (!canRead(entry.getTask(), Item.READ)) {
+                    return false;
+                }
+                return entry.getBlockerJob() != null
+                        ? canRead(entry.getBlockerJob(), Item.READ)
+                        : canRead(entry.getTask(), Item.EXTENDED_READ);
+            }
+        });
+        rsp.setHeader("ETag", etag(json.getLong("version")));
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.setContentType("application/json;charset=UTF-8");
+        json.write(rsp.getWriter());
+    }
+
+    /**
+     * Returns the blocked time statistics per job.
+     *
+     * @return the blocked time statistics per job
+     * @throws IOException
+     */
+    public List<BlockedTimeHistory.Statistics> getStatisticsByJob() throws IOException {
+        return BlockedTimeHistory.statistics(readableIntervals(), true);
+    }
+
+    /**
+     * Returns the blocked time statistics per blocker and rule.
+     *
+     * @return the blocked time statistics per blocker and rule
+     * @throws IOException
+     */
+    public List<BlockedTimeHistory.Statistics> getStatisticsByBlocker() throws IOException {
+        return BlockedTimeHistory.statistics(readableIntervals(), false);
+    }
+
+    /**
+     * Returns the recorded intervals the caller may see, by the same rules as the status: the blocked job must be
+     * readable, and the blocking job as well or, for blockers that are no local job, Extended Read on the blocked
+     * job is needed. Truncated names can't be resolved and are only shown to administrators.
+     */
+    private static List<BlockedTimeHistory.Interval> readableIntervals() throws IOException {
+        BlockedTimeHistory history = BlockedTimeHistory.get();
+        if (history == null) {
+            return Collections.emptyList();
+        }
+        List<BlockedTimeHistory.Interval> intervals = history.readAll();
+        if (Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)) {
+            return intervals;
+        }
+        List<BlockedTimeHistory.Interval> readable = new ArrayList<BlockedTimeHistory.Interval>(intervals.size());
+        for (BlockedTimeHistory.Interval interval : intervals) {
+            if (!canRead(interval.getTask(), Item.READ)) {
+                continue;
+            }
+            if (BlockedTimeHistory.isTruncated(interval.getBlocker())) {
+                continue;
+            }
+            if (exists(interval.getBlocker())
+                    ? canRead(interval.getBlocker(), Item.READ)
+                    : canRead(interval.getTask(), Item.EXTENDED_READ)) {
+                readable.add(interval);
+            }
+        }
+        return readable;
+    }
+
+    /**
+     * Renders the blocked time statistics per job and per blocker as JSON.
+     *
+     * @param req stapler request
+     * @param rsp stapler response
+     * @throws IOException
+     */
+    public void doStatistics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+        JSONObject json = new JSONObject();
+        json.put("jobs", toJSON(getStatisticsByJob()));
+        json.put("blockers", toJSON(getStatisticsByBlocker()));
+        rsp.setContentType("application/json;charset=UTF-8");
+        json.write(rsp.getWriter());
+    }
+
+    /**
+     * Converts the given statistics to JSON.
+     */
+    private static JSONArray toJSON(List<BlockedTimeHistory.Statistics> statistics) {
+        JSONArray array = new JSONArray();
+        for (BlockedTimeHistory.Statistics s : statistics) {
+            JSONObject json = new JSONObject();
+            json.put("name", s.getName());
+            json.put("count", s.getCount());
+            json.put("totalMillis", s.getTotal());
+            json.put("p50Millis", s.getP50());
+            json.put("p90Millis", s.getP90());
+            json.put("p99Millis", s.getP99());
+            json.put("maxMillis", s.getMax());
+            array.add(json);
+        }
+        return array;
+    }
+
+    /**
+     * Exports the recent finished builds of all jobs in the trace format of the {@link BlockingSimulator}.
+     * The queue time of past builds is not known, so the start time of a build is used as its arrival.
+     * Only jobs the caller may read and extended read are exported, sensitive parameter values are left out and so
+     * are parameters containing a tab or line break, which the trace format can't carry.
+     *
+     * Builds are exported under the job they block as, see {@link BlockingTasks}: matrix configurations under their
+     * matrix project. The builds of a matrix project itself run on a flyweight executor and are left out, as they
+     * don't occupy an executor of the simulated pool.
+     *
+     * @param req stapler request, <code>?builds=n</code> limits the number of builds per job
+     * @param rsp stapler response
+     * @throws IOException
+     */
+    public void doTrace(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins jenkins = Jenkins.getInstance();
+        jenkins.checkPermission(Jenkins.READ);
+
+        int limit = parseInt(req.getParameter("builds"), TRACE_BUILDS_PER_JOB);
+        rsp.setContentType("text/tab-separated-values;charset=UTF-8");
+        PrintWriter writer = rsp.getWriter();
+        writer.println("# arrival\tjob\tduration\tparameters...");
+        for (Job<?, ?> job : jenkins.getAllItems(Job.class)) {
+            if (job instanceof MatrixProject
+                    || !job.hasPermission(Item.READ) || !job.hasPermission(Item.EXTENDED_READ)) {
+                continue;
+            }
+            String fullName = job instanceof Queue.Task ? BlockingTasks.fullName((Queue.Task) job) : job.getFullName();
+            if (fullName == null) {
+                continue;
+            }
+            int count = 0;
+            for (Run<?, ?> build : job.getBuilds()) {
+                if (count++ >= limit) {
+                    break;
+                }
+                if (build.isBuilding()) {
+                    continue;
+                }
+                writer.print(build.getTimeInMillis());
+                writer.print('\t');
+                writer.print(fullName);
+                writer.print('\t');
+                writer.print(build.getDuration());
+                for (ParametersAction action : build.getActions(ParametersAction.class)) {
+                    for (ParameterValue param : action.getParameters()) {
+                        String value = param.isSensitive() ? null : ParametersKeyExtractor.valueOf(param);
+                        if (value != null && isTraceField(param.getName()) && isTraceField(value)) {
+                            writer.print('\t');
+                            writer.print(param.getName());
+                            writer.print('=');
+                            writer.print(value);
+                        }
+                    }
+                }
+                writer.println();
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Returns whether the given parameter name or value fits in a field of a trace line.
+     *
+     * @param text the parameter name or value
+     * @return false if it contains a tab or line break
+     */
+    static boolean isTraceField(String text) {
+        return text.indexOf('\t') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0;
+    }
+
+    /**
+     * Returns whether the caller has the given permission on the job with the given full name.
+     *
+     * @param fullName the full name of the job
+     * @param permission the permission
+     * @return true if the job exists and the caller has the permission
+     */
+    static boolean canRead(String fullName, Permission permission) {
+        Job<?, ?> job = Jenkins.getInstance().getItemByFullName(fullName, Job.class);
+        return job != null && job.hasPermission(Item.READ) && job.hasPermission(permission);
+    }
+
+    /**
+     * Returns whether a job with the given full name exists, whether or not the caller can see it.
+     */
+    private static boolean exists(String fullName) {
+        if (fullName == null) {
+            return false;
+        }
+        SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            return Jenkins.getInstance().getItemByFullName(fullName, Job.class) != null;
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    /**
+     * Returns the quoted ETag for the given version of this boot.
+     *
+     * @param version the blocking graph version
+     * @return the quoted ETag
+     */
+    static String etag(long version) {
+        return "\"" + EPOCH + "-" + version + "\"";
+    }
+
+    /**
+     * Parses a non-negative number parameter.
+     *
+     * @param value the raw parameter value
+     * @param defaultValue the value to use if the parameter is missing or invalid
+     * @return the parsed number
+     */
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(Integer.parseInt(value.trim()), 0);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
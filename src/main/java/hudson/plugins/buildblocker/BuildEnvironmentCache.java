@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the environment of running builds once, on a bounded background pool, and keeps it until the
+ * build completes.
+ *
+ * {@link Run#getEnvironment(TaskListener)} runs every EnvironmentContributor, some of which talk to SCMs or
+ * agents. Doing that inside canRun would hold the Queue lock for the whole computation, so the queue only
+ * reads the memoized environments and treats builds whose environment is still being resolved as blocking.
+ * Every SCM checkout drops the memoized environment, so variables like <code>GIT_BRANCH</code> are seen once the
+ * checkout is done. Variables contributed by build wrappers are not seen. A failed resolution is not memoized;
+ * the build keeps blocking as resolving until a later check resolves it.
+ */
+@Extension
+public class BuildEnvironmentCache extends RunListener<Run<?, ?>> {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(BuildEnvironmentCache.class.getName());
+
+    /**
+     * the number of threads resolving environments
+     */
+    private static final int THREADS = Integer.getInteger(BuildEnvironmentCache.class.getName() + ".threads", 2);
+
+    /**
+     * the maximum number of builds waiting for their environment to be resolved
+     */
+    private static final int QUEUE_SIZE = Integer.getInteger(BuildEnvironmentCache.class.getName() + ".queueSize", 1000);
+
+    /**
+     * the resolutions by build id
+     */
+    private final ConcurrentMap<String, Resolution> environments = new ConcurrentHashMap<String, Resolution>();
+
+    /**
+     * the pool resolving the environments, its threads end after a minute without work
+     */
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+            new NamingThreadFactory(new DaemonThreadFactory(), "BuildBlocker environment resolver"));
+
+    /**
+     * Constructor
+     */
+    public BuildEnvironmentCache() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the registered instance.
+     *
+     * @return the registered instance or null if Jenkins is not running
+     */
+    public static BuildEnvironmentCache get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return jenkins.getExtensionList(RunListener.class).get(BuildEnvironmentCache.class);
+    }
+
+    /**
+     * Returns the environment of the given build if it is resolved already. Otherwise the resolution is started,
+     * if not yet done, and null is returned.
+     *
+     * @param build the running build
+     * @return the environment or null while it is being resolved
+     */
+    public EnvVars get(Run<?, ?> build) {
+        Resolution resolution = environments.get(id(build));
+        if (resolution == null) {
+            resolve(build);
+            return null;
+        }
+        return resolution.environment;
+    }
+
+    /**
+     * Drops the memoized environment of the given build, the next check resolves it again.
+     *
+     * @param build the running build
+     */
+    public void invalidate(Run<?, ?> build) {
+        environments.remove(id(build));
+    }
+
+    @Override
+    public void onStarted(Run<?, ?> build, TaskListener listener) {
+        resolve(build);
+    }
+
+    @Override
+    public void onCompleted(Run<?, ?> build, TaskListener listener) {
+        environments.remove(id(build));
+    }
+
+    @Override
+    public void onDeleted(Run<?, ?> build) {
+        environments.remove(id(build));
+    }
+
+    /**
+     * Starts resolving the environment of the given build unless already done.
+     */
+    private void resolve(final Run<?, ?> build) {
+        final String id = id(build);
+        final Resolution resolution = new Resolution();
+        if (environments.putIfAbsent(id, resolution) != null) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    EnvVars environment;
+                    try {
+                        environment = build.getEnvironment(TaskListener.NULL);
+                    } catch (IOException e) {
+                        // not memoized, the next queue check tries again
+                        LOG.log(Level.WARNING, "could not resolve the environment of " + build, e);
+                        environments.remove(id, resolution);
+                        return;
+                    } catch (InterruptedException e) {
+                        LOG.log(Level.WARNING, "could not resolve the environment of " + build, e);
+                        environments.remove(id, resolution);
+                        return;
+                    }
+                    resolution.environment = environment;
+                    // the build may have completed or checked out in the meantime
+                    if (environments.get(id) == resolution && build.isBuilding()) {
+                        Jenkins jenkins = Jenkins.getInstance();
+                        if (jenkins != null) {
+                            jenkins.getQueue().scheduleMaintenance();
+                        }
+                    } else {
+                        environments.remove(id, resolution);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // retried by the next queue check
+            environments.remove(id, resolution);
+            LOG.log(Level.FINE, "too many builds waiting for their environment, retrying later", e);
+        }
+    }
+
+    /**
+     * Returns the key of the given build.
+     */
+    private static String id(Run<?, ?> build) {
+        return build.getParent().getFullName() + "#" + build.getNumber();
+    }
+
+    /**
+     * The environment of a build, null while it is being resolved.
+     */
+    private static final class Resolution {
+        private volatile EnvVars environment;
+    }
+
+    /**
+     * Drops the memoized environment when a build has checked out, as SCMs contribute variables afterwards.
+     */
+    @Extension
+    public static class CheckoutEvents extends SCMListener {
+
+        @Override
+        public void onCheckout(Run<?, ?> build, SCM scm, FilePath workspace, TaskListener listener,
+                File changelogFile, SCMRevisionState pollingBaseline) throws Exception {
+            BuildEnvironmentCache cache = get();
+            if (cache != null) {
+                cache.invalidate(build);
+            }
+        }
+    }
+}
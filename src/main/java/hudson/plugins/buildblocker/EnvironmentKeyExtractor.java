@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads blocking keys from the full environment of the build, the fallback for keys no cheaper extractor
+ * knows. The environment is taken from the {@link BuildEnvironmentCache}.
+ */
+@Extension(ordinal = -100)
+public class EnvironmentKeyExtractor extends BlockingKeyExtractor {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(EnvironmentKeyExtractor.class.getName());
+
+    @Override
+    public String getId() {
+        return "environment";
+    }
+
+    @Override
+    public Result extract(Run<?, ?> build, String name) {
+        EnvVars environment = environment(build);
+        if (environment == null) {
+            return Result.UNRESOLVED;
+        }
+        return Result.of(environment.get(name));
+    }
+
+    /**
+     * Returns the environment of the given running build, or null while it is being resolved. Without a
+     * {@link BuildEnvironmentCache} the environment is computed right away.
+     *
+     * @param build the running build
+     * @return the environment or null
+     */
+    private static EnvVars environment(Run<?, ?> build) {
+        BuildEnvironmentCache cache = BuildEnvironmentCache.get();
+        if (cache != null) {
+            return cache.get(build);
+        }
+        try {
+            return build.getEnvironment(TaskListener.NULL);
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+        return new EnvVars();
+    }
+}
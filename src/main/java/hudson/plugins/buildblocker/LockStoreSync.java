@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the blocking keys of the local running work to the enabled {@link BlockingLockStore} and caches
+ * the keys published by the other controllers.
+ *
+ * All I/O happens here, off the queue thread; {@link BlockingJobsMonitor} only reads the cached keys.
+ * Keys are <code>job:&lt;full name&gt;</code> for running jobs and <code>env:&lt;name&gt;=&lt;value&gt;</code>
+ * for the blocking environment variables of running builds.
+ */
+@Extension
+public class LockStoreSync extends PeriodicWork {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(LockStoreSync.class.getName());
+
+    /**
+     * the synchronization interval in milliseconds
+     */
+    private static final long PERIOD = Long.getLong(LockStoreSync.class.getName() + ".period", 5000L);
+
+    /**
+     * the id of this controller in the store, defaults to the instance id
+     */
+    private static final String CONTROLLER_ID = System.getProperty(LockStoreSync.class.getName() + ".controllerId");
+
+    /**
+     * the time keys are valid for, both the published and the read ones
+     */
+    private static final long LEASE = 3 * PERIOD;
+
+    static final String JOB_PREFIX = "job:";
+    static final String ENV_PREFIX = "env:";
+
+    /**
+     * the keys published by the other controllers, as read at the last successful synchronization
+     */
+    private static volatile RemoteKeys remoteKeys = new RemoteKeys(Collections.<String>emptySet(), 0);
+
+    /**
+     * Returns the keys published by the other controllers at the last synchronization. Keys that could not be
+     * read again for longer than the lease are dropped, so an unreadable store doesn't block forever.
+     *
+     * @return the keys published by the other controllers
+     */
+    public static Set<String> getRemoteKeys() {
+        RemoteKeys keys = remoteKeys;
+        if (keys.keys.isEmpty() || System.currentTimeMillis() - keys.readAt > LEASE) {
+            return Collections.emptySet();
+        }
+        return keys.keys;
+    }
+
+    /**
+     * Returns the key of a running job.
+     *
+     * @param fullName the full name of the job
+     * @return the key of the job
+     */
+    static String jobKey(String fullName) {
+        return JOB_PREFIX + fullName;
+    }
+
+    /**
+     * Returns the key of a blocking environment variable value.
+     *
+     * @param name the environment variable name
+     * @param value the environment variable value
+     * @return the key of the value
+     */
+    static String envKey(String name, String value) {
+        return ENV_PREFIX + name + "=" + value;
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return PERIOD;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        BlockingLockStore store = BlockingLockStore.getEnabled();
+        if (store == null) {
+            remoteKeys = new RemoteKeys(Collections.<String>emptySet(), 0);
+            return;
+        }
+        String controllerId = CONTROLLER_ID != null ? CONTROLLER_ID : Jenkins.getInstance().getLegacyInstanceId();
+        try {
+            store.publish(controllerId, localKeys(), LEASE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "could not publish to the blocking lock store", e);
+        }
+        try {
+            long readAt = System.currentTimeMillis();
+            remoteKeys = new RemoteKeys(Collections.unmodifiableSet(store.readOthers(controllerId)), readAt);
+        } catch (IOException e) {
+            // the keys read before expire with their lease
+            LOG.log(Level.WARNING, "could not read from the blocking lock store", e);
+        }
+    }
+
+    /**
+     * Collects the keys of the work running or starting on this controller. Buildable items are not published,
+     * as controllers would block each other's conflicting items forever.
+     *
+     * @return the keys of the local running work
+     */
+    private Set<String> localKeys() {
+        Jenkins jenkins = Jenkins.getInstance();
+        // the extractor ids the rules read each environment variable with, null for all extractors
+        Map<String, Set<String>> envVars = new HashMap<String, Set<String>>();
+        for (Job job : jenkins.getAllItems(Job.class)) {
+            BuildBlockerProperty property = (BuildBlockerProperty) job.getProperty(BuildBlockerProperty.class);
+            if (property != null) {
+                BlockingRules rules = property.getMonitor().getRules();
+                for (int i = 0; i < rules.getEnvVars().size(); i++) {
+                    Set<String> sources = envVars.get(rules.getEnvVars().get(i));
+                    if (sources == null) {
+                        sources = new HashSet<String>();
+                        envVars.put(rules.getEnvVars().get(i), sources);
+                    }
+                    sources.add(rules.getEnvVarSource(i));
+                }
+            }
+        }
+
+        Set<String> keys = new TreeSet<String>();
+        for (Computer computer : jenkins.getComputers()) {
+            addKeys(computer.getExecutors(), envVars, keys);
+            addKeys(computer.getOneOffExecutors(), envVars, keys);
+        }
+        // builds that left the queue but are not running yet
+        for (BlockingSnapshot.Work work : BlockingSnapshot.current().getBuildable()) {
+            if (work.isStarted()) {
+                if (work.getFullName() != null) {
+                    keys.add(jobKey(work.getFullName()));
+                }
+                for (String envVar : envVars.keySet()) {
+                    String value = work.getParameters().get(envVar);
+                    if (value != null) {
+                        keys.add(envKey(envVar, value));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Adds the keys of the work running on the given executors, reading each environment variable with the
+     * extractors the rules select.
+     */
+    private void addKeys(List<? extends Executor> executors, Map<String, Set<String>> envVars, Set<String> keys) {
+        for (Executor executor : executors) {
+            Queue.Executable executable = executor.getCurrentExecutable();
+            if (executable == null) {
+                continue;
+            }
+            String fullName = BlockingTasks.fullName(executable.getParent().getOwnerTask());
+            if (fullName != null) {
+                keys.add(jobKey(fullName));
+            }
+            if (!envVars.isEmpty() && executable instanceof Run) {
+                for (Map.Entry<String, Set<String>> envVar : envVars.entrySet()) {
+                    for (String source : envVar.getValue()) {
+                        BlockingKeyExtractor.Result value = BlockingKeyExtractor.extractValue((Run<?, ?>) executable,
+                                envVar.getKey(), source);
+                        // unresolved values are published with the next synchronization
+                        if (value != null && value.isResolved()) {
+                            keys.add(envKey(envVar.getKey(), value.getValue()));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Keys read from the store and the time they were read.
+     */
+    private static final class RemoteKeys {
+        private final Set<String> keys;
+        private final long readAt;
+
+        RemoteKeys(Set<String> keys, long readAt) {
+            this.keys = keys;
+            this.readAt = readAt;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link BlockingLockStore} backed by memory-mapped files in a directory shared by the controllers.
+ *
+ * Every controller owns one fixed size lease file named after its id and is the only writer of that file,
+ * so no cross-process file locking is needed. A sequence number is incremented before and after each write;
+ * readers retry until they see the same even sequence number on both ends of the payload.
+ *
+ * Buffer accesses are plain, so the order of the sequence number and payload accesses is enforced by
+ * {@link #fence()}: a volatile write followed by a volatile read, which HotSpot compiles to a full memory
+ * barrier. Other processes see the stores in that order only if the file system keeps mappings of the same
+ * file coherent, as local file systems do; network file systems generally don't.
+ *
+ * Each mapping of the own lease file writes a new random incarnation number into the header. Cached mappings
+ * are checked against the size and incarnation of the file on disk and mapped again when the file was
+ * truncated, deleted or recreated; mappings of lease files that disappeared are dropped.
+ *
+ * Enabled by pointing the system property <code>hudson.plugins.buildblocker.MappedFileLockStore.dir</code>
+ * to the shared directory.
+ */
+@Extension
+public class MappedFileLockStore extends BlockingLockStore {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(MappedFileLockStore.class.getName());
+
+    /**
+     * the system property naming the shared directory
+     */
+    public static final String DIR_PROPERTY = MappedFileLockStore.class.getName() + ".dir";
+
+    /**
+     * the size of a lease file
+     */
+    static final int FILE_SIZE = 64 * 1024;
+
+    private static final String SUFFIX = ".lease";
+    private static final int MAGIC = 0x42424C53;
+    private static final int SEQUENCE_OFFSET = 4;
+    private static final int EXPIRES_OFFSET = 12;
+    private static final int LENGTH_OFFSET = 20;
+    private static final int INCARNATION_OFFSET = 24;
+    private static final int PAYLOAD_OFFSET = 32;
+    private static final int MAX_READ_ATTEMPTS = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * written and read by {@link #fence()} only
+     */
+    private static volatile int fence;
+
+    /**
+     * the source of incarnation numbers
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * the shared directory or null if disabled
+     */
+    private final File dir;
+
+    /**
+     * the mapped lease files by file name
+     */
+    private final Map<String, Mapping> mapped = new HashMap<String, Mapping>();
+
+    /**
+     * Constructor using the directory from the system property
+     */
+    public MappedFileLockStore() {
+        this(System.getProperty(DIR_PROPERTY) != null ? new File(System.getProperty(DIR_PROPERTY)) : null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param dir the shared directory or null to disable the store
+     */
+    public MappedFileLockStore(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    @Override
+    public synchronized void publish(String controllerId, Collection<String> keys, long leaseMillis) throws IOException {
+        MappedByteBuffer buffer = map(fileName(controllerId), true).buffer;
+        byte[] payload = encode(keys);
+
+        long sequence = buffer.getLong(SEQUENCE_OFFSET);
+        buffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+        fence();
+        buffer.putLong(EXPIRES_OFFSET, System.currentTimeMillis() + leaseMillis);
+        buffer.putInt(LENGTH_OFFSET, payload.length);
+        for (int i = 0; i < payload.length; i++) {
+            buffer.put(PAYLOAD_OFFSET + i, payload[i]);
+        }
+        buffer.putInt(0, MAGIC);
+        fence();
+        buffer.putLong(SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    @Override
+    public synchronized Set<String> readOthers(String controllerId) throws IOException {
+        if (!dir.isDirectory()) {
+            return Collections.emptySet();
+        }
+        String own = fileName(controllerId);
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX) && file.length() == FILE_SIZE;
+            }
+        });
+        if (files == null) {
+            return Collections.emptySet();
+        }
+        Set<String> names = new HashSet<String>();
+        Set<String> keys = new HashSet<String>();
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.equals(own)) {
+                names.add(name);
+                Mapping mapping = map(name, false);
+                if (mapping != null) {
+                    keys.addAll(read(mapping, now));
+                }
+            }
+        }
+        // drop the mappings of lease files that are gone
+        for (Iterator<String> it = mapped.keySet().iterator(); it.hasNext();) {
+            String name = it.next();
+            if (!name.equals(own) && !names.contains(name)) {
+                it.remove();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the keys of the given lease file, or none if the lease has expired. If the file keeps changing
+     * while it is read, the keys of the last successful read are returned until their lease expires.
+     */
+    private Set<String> read(Mapping mapping, long now) {
+        MappedByteBuffer buffer = mapping.buffer;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                Thread.yield();
+            }
+            long before = buffer.getLong(SEQUENCE_OFFSET);
+            if ((before & 1) != 0) {
+                continue;
+            }
+            fence();
+            long expires = buffer.getLong(EXPIRES_OFFSET);
+            int length = buffer.getInt(LENGTH_OFFSET);
+            boolean valid = buffer.getInt(0) == MAGIC && length >= 0 && length <= FILE_SIZE - PAYLOAD_OFFSET;
+            byte[] payload = new byte[valid ? length : 0];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = buffer.get(PAYLOAD_OFFSET + i);
+            }
+            fence();
+            if (buffer.getLong(SEQUENCE_OFFSET) == before) {
+                Set<String> keys = new HashSet<String>();
+                if (valid) {
+                    decode(payload, keys);
+                }
+                mapping.lastKeys = keys;
+                mapping.lastExpires = valid ? expires : 0;
+                return mapping.lastExpires >= now ? keys : Collections.<String>emptySet();
+            }
+        }
+        LOG.log(Level.FINE, "lease file kept changing while reading, using the keys read before");
+        return mapping.lastExpires >= now ? mapping.lastKeys : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the mapping of the given lease file, creating the file if needed. A cached mapping is reused only
+     * while the file on disk has the expected size and the incarnation number of the mapping.
+     *
+     * The own file gets a new incarnation number, and its sequence number is made even again in case the
+     * previous writer died in the middle of a write; the payload of such a write is marked expired.
+     *
+     * @return the mapping, or null if the file of another controller is not a complete lease file
+     */
+    private Mapping map(String fileName, boolean writable) throws IOException {
+        File file = new File(dir, fileName);
+        Mapping mapping = mapped.get(fileName);
+        if (mapping != null) {
+            if (file.length() == FILE_SIZE && incarnation(file) == mapping.incarnation) {
+                return mapping;
+            }
+            mapped.remove(fileName);
+        }
+        if (writable && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create lock store directory " + dir);
+        }
+        MappedByteBuffer buffer;
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        } catch (FileNotFoundException e) {
+            if (writable) {
+                throw e;
+            }
+            // deleted since it was listed
+            return null;
+        }
+        try {
+            if (writable && raf.length() != FILE_SIZE) {
+                raf.setLength(FILE_SIZE);
+            } else if (raf.length() != FILE_SIZE) {
+                return null;
+            }
+            buffer = raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+        } finally {
+            // the mapping stays valid after closing the file
+            raf.close();
+        }
+        long incarnation;
+        if (writable) {
+            incarnation = RANDOM.nextLong();
+            buffer.putLong(INCARNATION_OFFSET, incarnation);
+            long sequence = buffer.getLong(SEQUENCE_OFFSET);
+            if ((sequence & 1) != 0) {
+                buffer.putLong(EXPIRES_OFFSET, 0);
+                fence();
+                buffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+            }
+        } else {
+            incarnation = buffer.getLong(INCARNATION_OFFSET);
+        }
+        mapping = new Mapping(buffer, incarnation);
+        mapped.put(fileName, mapping);
+        return mapping;
+    }
+
+    /**
+     * Reads the incarnation number of the given lease file from disk, or returns 0 if it can't be read.
+     */
+    private static long incarnation(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(INCARNATION_OFFSET);
+                return raf.readLong();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Orders the buffer accesses before the call before those after it.
+     */
+    private static void fence() {
+        fence = 0;
+        if (fence != 0) {
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * Returns the lease file name of the given controller.
+     */
+    private static String fileName(String controllerId) {
+        return controllerId.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX;
+    }
+
+    /**
+     * Encodes the keys as line feed separated UTF-8, dropping the keys that don't fit into the file.
+     */
+    private static byte[] encode(Collection<String> keys) {
+        StringBuilder builder = new StringBuilder();
+        for (String key : keys) {
+            builder.append(key.replace('\n', ' ')).append('\n');
+        }
+        byte[] payload = builder.toString().getBytes(UTF8);
+        int max = FILE_SIZE - PAYLOAD_OFFSET;
+        if (payload.length <= max) {
+            return payload;
+        }
+        LOG.log(Level.WARNING, "too many blocking keys to publish, dropping some of {0}", keys.size());
+        int length = max;
+        while (length > 0 && payload[length - 1] != '\n') {
+            length--;
+        }
+        byte[] truncated = new byte[length];
+        System.arraycopy(payload, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    /**
+     * Adds the line feed separated keys to the given set.
+     */
+    private static void decode(byte[] payload, Set<String> keys) {
+        for (String key : new String(payload, UTF8).split("\n")) {
+            if (key.length() > 0) {
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * A mapped lease file, the incarnation number it was mapped with and the keys last read from it.
+     */
+    private static final class Mapping {
+        private final MappedByteBuffer buffer;
+        private final long incarnation;
+
+        /**
+         * the keys and lease expiry of the last successful read
+         */
+        private Set<String> lastKeys = Collections.emptySet();
+        private long lastExpires;
+
+        Mapping(MappedByteBuffer buffer, long incarnation) {
+            this.buffer = buffer;
+            this.incarnation = incarnation;
+        }
+    }
+}
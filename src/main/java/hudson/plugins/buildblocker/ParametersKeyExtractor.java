@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Reads blocking keys from the build parameters, without computing the environment.
+ */
+@Extension(ordinal = 100)
+public class ParametersKeyExtractor extends BlockingKeyExtractor {
+
+    @Override
+    public String getId() {
+        return "parameters";
+    }
+
+    @Override
+    public Result extract(Run<?, ?> build, String name) {
+        ParametersAction action = build.getAction(ParametersAction.class);
+        if (action == null) {
+            return null;
+        }
+        ParameterValue parameter = action.getParameter(name);
+        return parameter != null ? Result.of(valueOf(parameter)) : null;
+    }
+
+    /**
+     * Returns the value of the given parameter as shown in its short description <code>name='value'</code>.
+     *
+     * @param parameter the parameter
+     * @return the value or null if the description has no value
+     */
+    static String valueOf(ParameterValue parameter) {
+        String valueRaw = parameter.getShortDescription();
+        if (StringUtils.isNotBlank(valueRaw) && valueRaw.contains("=")) {
+            String[] keyValue = valueRaw.split("=", -1);
+            return keyValue[1].replaceAll("^\'|\'$", "");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Index of the parameter values of buildable and pending queue items, maintained from queue events.
+ *
+ * Lets {@link BlockingJobsMonitor} find queued items that are about to start with the same blocking
+ * environment variable value in O(1), instead of scanning the buildable items for every check.
+ * Values are matched like {@link BlockingRules#matchValue(String, String)}: a requested value with regular
+ * expression syntax is matched against the indexed values of the parameter, which needs a scan of the index.
+ */
+@Extension
+public class QueueKeyIndex extends QueueListener {
+
+    /**
+     * the indexed items by <code>name=value</code>
+     */
+    private final Map<String, List<Queue.BuildableItem>> itemsByKey = new HashMap<String, List<Queue.BuildableItem>>();
+
+    /**
+     * the indexed keys by queue item id
+     */
+    private final Map<Long, List<String>> keysById = new HashMap<Long, List<String>>();
+
+    /**
+     * Returns the registered instance.
+     *
+     * @return the registered instance or null if Jenkins is not running
+     */
+    public static QueueKeyIndex get() {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        return jenkins.getExtensionList(QueueListener.class).get(QueueKeyIndex.class);
+    }
+
+    @Override
+    public void onEnterBuildable(Queue.BuildableItem bi) {
+        add(bi, BlockingJobsMonitor.itemParameters(bi));
+    }
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        remove(wi.getId());
+    }
+
+    @Override
+    public void onEnterBlocked(Queue.BlockedItem bi) {
+        remove(bi.getId());
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        remove(li.getId());
+    }
+
+    /**
+     * Returns an indexed item other than the given one with the given parameter value, which must start first.
+     * Pending items always do. Among buildable items the one that entered the queue first wins, so two buildable
+     * items never block each other.
+     *
+     * @param item the queue item to check
+     * @param name the parameter name
+     * @param value the parameter value of the queue item, treated as regular expression
+     * @return the conflicting item or null
+     */
+    public synchronized Queue.BuildableItem findConflict(Queue.Item item, String name, String value) {
+        if (itemsByKey.isEmpty()) {
+            return null;
+        }
+        boolean indexed = keysById.containsKey((long) item.getId());
+        Queue.BuildableItem conflict = findConflict(item, indexed, itemsByKey.get(key(name, value)));
+        if (conflict != null || BlockingRules.isLiteral(value)) {
+            return conflict;
+        }
+        Matcher matcher;
+        try {
+            matcher = Pattern.compile(value).matcher("");
+        } catch (PatternSyntaxException pse) {
+            return null;
+        }
+        String prefix = key(name, "");
+        for (Map.Entry<String, List<Queue.BuildableItem>> entry : itemsByKey.entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(prefix)
+                    && BlockingRules.match(matcher, key.substring(prefix.length())) != BlockingRules.NO_MATCH) {
+                conflict = findConflict(item, indexed, entry.getValue());
+                if (conflict != null) {
+                    return conflict;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first of the given items that must start before the given one.
+     */
+    private static Queue.BuildableItem findConflict(Queue.Item item, boolean indexed, List<Queue.BuildableItem> items) {
+        if (items == null) {
+            return null;
+        }
+        for (Queue.BuildableItem other : items) {
+            if (other.getId() == item.getId()) {
+                continue;
+            }
+            if (!indexed || other.isPending() || other.getId() < item.getId()) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indexes the given item under its parameter values, replacing a previous entry of the same item.
+     *
+     * @param item the buildable item
+     * @param params the parameters of the item
+     */
+    synchronized void add(Queue.BuildableItem item, Map<String, String> params) {
+        remove(item.getId());
+        if (params.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<String>(params.size());
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String key = key(param.getKey(), param.getValue());
+            List<Queue.BuildableItem> items = itemsByKey.get(key);
+            if (items == null) {
+                items = new ArrayList<Queue.BuildableItem>(2);
+                itemsByKey.put(key, items);
+            }
+            items.add(item);
+            keys.add(key);
+        }
+        keysById.put((long) item.getId(), keys);
+    }
+
+    /**
+     * Removes the item with the given id from the index.
+     *
+     * @param id the queue item id
+     */
+    synchronized void remove(long id) {
+        if (keysById.isEmpty()) {
+            return;
+        }
+        List<String> keys = keysById.remove(id);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            List<Queue.BuildableItem> items = itemsByKey.get(key);
+            if (items != null) {
+                for (int i = items.size() - 1; i >= 0; i--) {
+                    if (items.get(i).getId() == id) {
+                        items.remove(i);
+                    }
+                }
+                if (items.isEmpty()) {
+                    itemsByKey.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index key of a parameter value.
+     */
+    private static String key(String name, String value) {
+        return name + "=" + value;
+    }
+}
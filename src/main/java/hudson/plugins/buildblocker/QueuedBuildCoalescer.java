@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.CauseAction;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cancels queued builds superseded by a newer build of the same job with the same blocking environment
+ * variable value, for jobs with {@link BuildBlockerProperty#isCoalesceQueuedBuilds()} set.
+ *
+ * Only older items currently blocked by this plugin on an environment variable are cancelled; their causes
+ * are carried over to the newer item. Items whose blocker's environment is still being resolved are kept.
+ * The cancellation runs outside of the queue listener callback, as the queue may be iterating its item lists
+ * at that time, but under the Queue lock.
+ */
+@Extension
+public class QueuedBuildCoalescer extends QueueListener {
+
+    /**
+     * the logger
+     */
+    private static final Logger LOG = Logger.getLogger(QueuedBuildCoalescer.class.getName());
+
+    @Override
+    public void onEnterWaiting(final Queue.WaitingItem wi) {
+        if (!(wi.task instanceof Job)) {
+            return;
+        }
+        BuildBlockerProperty property = (BuildBlockerProperty) ((Job) wi.task).getProperty(BuildBlockerProperty.class);
+        if (property == null || !property.isCoalesceQueuedBuilds()
+                || property.getMonitor().getRules().getEnvVars().isEmpty()) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                coalesce(wi.task, wi.getId());
+            }
+        });
+    }
+
+    /**
+     * Cancels the older items of the given task sharing a blocking environment variable value with the newer item.
+     * Runs under the Queue lock, so neither item can start or change state meanwhile.
+     *
+     * @param task the task of the newer item
+     * @param newerId the id of the newer item
+     */
+    void coalesce(final Queue.Task task, final long newerId) {
+        Queue.withLock(new Runnable() {
+            public void run() {
+                coalesceLocked(task, newerId);
+            }
+        });
+    }
+
+    /**
+     * Does the work of {@link #coalesce(Queue.Task, long)} while the Queue lock is held.
+     */
+    private void coalesceLocked(Queue.Task task, long newerId) {
+        Jenkins jenkins = Jenkins.getInstance();
+        BlockingStatus status = BlockingStatus.get();
+        if (jenkins == null || status == null) {
+            return;
+        }
+        Queue queue = jenkins.getQueue();
+        Queue.Item[] items = queue.getItems();
+
+        Queue.Item newer = null;
+        for (Queue.Item item : items) {
+            if (item.getId() == newerId) {
+                newer = item;
+            }
+        }
+        if (newer == null) {
+            // started or cancelled in the meantime
+            return;
+        }
+
+        BuildBlockerProperty property = (BuildBlockerProperty) ((Job) task).getProperty(BuildBlockerProperty.class);
+        if (property == null) {
+            return;
+        }
+        List<String> envVars = property.getMonitor().getRules().getEnvVars();
+        Map<String, String> newerParams = BlockingJobsMonitor.itemParameters(newer);
+
+        for (Queue.Item older : items) {
+            if (older.task != task || older.getId() >= newerId || !(older instanceof Queue.BlockedItem)) {
+                continue;
+            }
+            BlockingStatus.Entry entry = status.getEntry(older.getId());
+            // a blockage on an environment that is still being resolved may not hold once it is known
+            if (entry == null || entry.isResolving() || !envVars.contains(entry.getRule())) {
+                continue;
+            }
+            String key = entry.getRule();
+            String value = newerParams.get(key);
+            if (value == null || !value.equals(BlockingJobsMonitor.itemParameters(older).get(key))) {
+                continue;
+            }
+            if (queue.cancel(older)) {
+                LOG.log(Level.INFO, "{0} superseded by {1} on {2}={3}", new Object[]{older, newer, key, value});
+                new CauseAction(older.getCauses()).foldIntoExisting(newer, task, new ArrayList<Action>());
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Detects regular expressions prone to super-linear backtracking, i.e. a repeated group that itself
+ * contains a repetition, like <code>(a+)+</code> or <code>(.*-)*deploy</code>.
+ *
+ * The check is a heuristic on the pattern text; it doesn't prove a pattern safe.
+ */
+public final class RegexSafety {
+
+    private RegexSafety() {
+    }
+
+    /**
+     * Returns the first repeated group containing a repetition, or null if there is none.
+     *
+     * @param regex a valid regular expression
+     * @return the offending group, or null
+     */
+    public static String findNestedQuantifier(String regex) {
+        List<Integer> groupStarts = new ArrayList<Integer>();
+        List<Boolean> groupQuantified = new ArrayList<Boolean>();
+        // the top level frame
+        groupQuantified.add(Boolean.FALSE);
+
+        int length = regex.length();
+        int i = 0;
+        while (i < length) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < length && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    i = end < 0 ? length : end + 2;
+                } else {
+                    i += 2;
+                }
+                continue;
+            }
+            if (c == '[') {
+                i = skipCharacterClass(regex, i);
+                continue;
+            }
+            if (c == '(') {
+                groupStarts.add(i);
+                groupQuantified.add(Boolean.FALSE);
+                i++;
+                continue;
+            }
+            if (c == ')' && !groupStarts.isEmpty()) {
+                int start = groupStarts.remove(groupStarts.size() - 1);
+                boolean inner = groupQuantified.remove(groupQuantified.size() - 1);
+                int next = i + 1;
+                boolean repeated = next < length && isRepetition(regex, next);
+                if (repeated && inner) {
+                    int end = regex.charAt(next) == '{' ? regex.indexOf('}', next) : next;
+                    return regex.substring(start, end + 1);
+                }
+                if (inner || repeated) {
+                    groupQuantified.set(groupQuantified.size() - 1, Boolean.TRUE);
+                }
+                i++;
+                continue;
+            }
+            if (isRepetition(regex, i)) {
+                groupQuantified.set(groupQuantified.size() - 1, Boolean.TRUE);
+            }
+            i++;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the quantifier at the given position allows more than one repetition.
+     */
+    private static boolean isRepetition(String regex, int i) {
+        char c = regex.charAt(i);
+        if (c == '*' || c == '+') {
+            return true;
+        }
+        if (c == '{') {
+            int end = regex.indexOf('}', i);
+            if (end < 0) {
+                return false;
+            }
+            String bounds = regex.substring(i + 1, end);
+            int comma = bounds.indexOf(',');
+            try {
+                if (comma < 0) {
+                    return Integer.parseInt(bounds.trim()) > 1;
+                }
+                String upper = bounds.substring(comma + 1).trim();
+                return upper.length() == 0 || Integer.parseInt(upper) > 1;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position after the character class starting at the given position.
+     */
+    private static int skipCharacterClass(String regex, int start) {
+        int i = start + 1;
+        int depth = 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        while (i < regex.length() && depth > 0) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            }
+            i++;
+        }
+        return i;
+    }
+}
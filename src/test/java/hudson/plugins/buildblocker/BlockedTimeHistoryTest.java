@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests
+ */
+public class BlockedTimeHistoryTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("history", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * The ring file keeps the newest records
+     * @throws Exception
+     */
+    public void testRing() throws Exception {
+        BlockedTimeHistory history = new BlockedTimeHistory(file, 3);
+        assertTrue(history.readAll().isEmpty());
+
+        for (int i = 0; i < 5; i++) {
+            history.write(new BlockedTimeHistory.Interval("job" + i, "blocker", "block.*", i, i + 10));
+        }
+        assertEquals(3 * BlockedTimeHistory.RECORD_SIZE + 24, file.length());
+
+        List<BlockedTimeHistory.Interval> intervals = history.readAll();
+        assertEquals(3, intervals.size());
+        assertEquals("job2", intervals.get(0).getTask());
+        assertEquals("job4", intervals.get(2).getTask());
+        assertEquals("blocker", intervals.get(2).getBlocker());
+        assertEquals("block.*", intervals.get(2).getRule());
+        assertEquals(4, intervals.get(2).getStart());
+        assertEquals(10, intervals.get(2).getDuration());
+
+        // a different capacity starts over
+        assertTrue(new BlockedTimeHistory(file, 4).readAll().isEmpty());
+    }
+
+    /**
+     * Long names are truncated to fit the fixed size records and marked with a hash of the full name
+     * @throws Exception
+     */
+    public void testLongNames() throws Exception {
+        BlockedTimeHistory history = new BlockedTimeHistory(file, 3);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append('\u00e4');
+        }
+        history.write(new BlockedTimeHistory.Interval(name.toString(), "blocker", name + "x", 0, 1));
+        history.write(new BlockedTimeHistory.Interval(name + "y", "blocker", "rule", 0, 1));
+
+        List<BlockedTimeHistory.Interval> intervals = history.readAll();
+        BlockedTimeHistory.Interval interval = intervals.get(0);
+        assertTrue(BlockedTimeHistory.isTruncated(interval.getTask()));
+        assertTrue(interval.getTask().startsWith(name.substring(0, 33) + BlockedTimeHistory.TRUNCATED));
+        assertTrue(BlockedTimeHistory.isTruncated(interval.getRule()));
+        assertEquals("blocker", interval.getBlocker());
+        assertFalse(BlockedTimeHistory.isTruncated(interval.getBlocker()));
+
+        // different names with the same prefix stay apart
+        assertFalse(interval.getTask().equals(intervals.get(1).getTask()));
+        assertEquals(2, BlockedTimeHistory.statistics(intervals, true).size());
+    }
+
+    /**
+     * Aggregation per job and per blocker
+     * @throws Exception
+     */
+    public void testStatistics() throws Exception {
+        List<BlockedTimeHistory.Interval> intervals = Arrays.asList(
+                new BlockedTimeHistory.Interval("a", "deploy", "deploy.*", 0, 100),
+                new BlockedTimeHistory.Interval("a", "deploy", "deploy.*", 0, 300),
+                new BlockedTimeHistory.Interval("b", "deploy", "deploy.*", 0, 1000),
+                new BlockedTimeHistory.Interval("b", "build", "branchName", 0, 50));
+
+        List<BlockedTimeHistory.Statistics> byJob = BlockedTimeHistory.statistics(intervals, true);
+        assertEquals(2, byJob.size());
+        assertEquals("b", byJob.get(0).getName());
+        assertEquals(1050, byJob.get(0).getTotal());
+        assertEquals("a", byJob.get(1).getName());
+        assertEquals(2, byJob.get(1).getCount());
+        assertEquals(100, byJob.get(1).getP50());
+        assertEquals(300, byJob.get(1).getP90());
+        assertEquals(300, byJob.get(1).getMax());
+
+        List<BlockedTimeHistory.Statistics> byBlocker = BlockedTimeHistory.statistics(intervals, false);
+        assertEquals(2, byBlocker.size());
+        assertEquals("deploy [deploy.*]", byBlocker.get(0).getName());
+        assertEquals(3, byBlocker.get(0).getCount());
+        assertEquals("build [branchName]", byBlocker.get(1).getName());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Unit tests
+ */
+public class BlockingRulesTest extends TestCase {
+
+    /**
+     * Parsing of the configuration fields
+     * @throws Exception
+     */
+    public void testParse() throws Exception {
+        assertSame(BlockingRules.EMPTY, BlockingRules.parse(null, null));
+        assertSame(BlockingRules.EMPTY, BlockingRules.parse(" ", ""));
+        // invalid regular expressions are skipped
+        assertSame(BlockingRules.EMPTY, BlockingRules.parse("*BW2S.*QRT.", null));
+
+        BlockingRules rules = BlockingRules.parse("xxx\n\nblock.*\n*BW2S.*QRT.", "branchName\nsha1");
+        assertFalse(rules.isEmpty());
+        assertEquals(2, rules.getJobPatterns().size());
+        assertEquals(2, rules.getEnvVars().size());
+        assertEquals("sha1", rules.getEnvVars().get(1));
+        assertNull(rules.getEnvVarSource(1));
+    }
+
+    /**
+     * Selecting the key extractor of an environment variable
+     * @throws Exception
+     */
+    public void testEnvVarSource() throws Exception {
+        BlockingRules rules = BlockingRules.parse(null, "ghprbSourceBranch:parameters\nsha1");
+        assertEquals("ghprbSourceBranch", rules.getEnvVars().get(0));
+        assertEquals("parameters", rules.getEnvVarSource(0));
+        assertEquals("sha1", rules.getEnvVars().get(1));
+        assertNull(rules.getEnvVarSource(1));
+    }
+
+    /**
+     * Matching of job names
+     * @throws Exception
+     */
+    public void testMatchJob() throws Exception {
+        BlockingRules rules = BlockingRules.parse("xxx\nblock.*\nyyy", null);
+        assertEquals("block.*", rules.matchJob("blockingJob"));
+        assertEquals("xxx", rules.matchJob("xxx"));
+        assertNull(rules.matchJob("xxxx"));
+        assertNull(rules.matchJob("random"));
+    }
+
+    /**
+     * Matching of environment variable values
+     * @throws Exception
+     */
+    public void testMatchValue() throws Exception {
+        assertTrue(BlockingRules.matchValue("feature/x", "feature/x"));
+        assertTrue(BlockingRules.matchValue("feature/x", "feature/.*"));
+        assertFalse(BlockingRules.matchValue("feature/x", "master"));
+        assertFalse(BlockingRules.matchValue(null, "master"));
+        assertFalse(BlockingRules.matchValue("master", null));
+        assertFalse(BlockingRules.matchValue("master", "*BW2S.*QRT."));
+    }
+
+    /**
+     * Requested values are compiled once and matched like single values
+     * @throws Exception
+     */
+    public void testRequestedValues() throws Exception {
+        BlockingRules.RequestedValues requested = new BlockingRules.RequestedValues(
+                new String[]{"feature/.*", "master", null, "*BW2S.*QRT."});
+        assertEquals("branch", requested.match(0, "branch", "feature/x"));
+        assertNull(requested.match(0, "branch", "master"));
+        assertEquals("branch", requested.match(1, "branch", "master"));
+        assertNull(requested.match(1, "branch", "feature/x"));
+        assertNull(requested.match(2, "branch", "master"));
+        assertNull(requested.match(3, "branch", "master"));
+        assertNull(requested.match(3, "branch", "master"));
+        assertNull(requested.get(2));
+    }
+
+    /**
+     * Repeated checks of job names and values don't allocate
+     * @throws Exception
+     */
+    public void testNoAllocation() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        BlockingRules rules = BlockingRules.parse("deploy\nrelease-.*\n.*-nightly", "branch");
+        BlockingRules.RequestedValues requested = new BlockingRules.RequestedValues(new String[]{"feature/.*"});
+        int iterations = 10000;
+        for (int i = 0; i < iterations; i++) {
+            check(rules, requested);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            check(rules, requested);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < iterations);
+    }
+
+    private static void check(BlockingRules rules, BlockingRules.RequestedValues requested) {
+        assertNull(rules.matchJob("build-feature"));
+        assertEquals("release-.*", rules.matchJob("release-1.0"));
+        assertEquals("deploy", rules.matchJob("deploy"));
+        assertEquals("branch", requested.match(0, "branch", "feature/x"));
+        assertNull(requested.match(0, "branch", "master"));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests
+ */
+public class BlockingSimulatorTest extends TestCase {
+
+    private static final String TRACE = "# arrival\tjob\tduration\tparameters...\n"
+            + "0\tdeploy-a\t100\tbranchName=master\n"
+            + "0\tdeploy-b\t100\tbranchName=feature\n"
+            + "10\tbuild\t50\tbranchName=master\n";
+
+    /**
+     * Reading trace and rule set
+     * @throws Exception
+     */
+    public void testRead() throws Exception {
+        List<BlockingSimulator.TraceEntry> trace = BlockingSimulator.readTrace(new StringReader(
+                "10\tlater\t1\n" + TRACE));
+        assertEquals(4, trace.size());
+        assertEquals("deploy-a", trace.get(0).getJob());
+        // same arrival keeps the trace order
+        assertEquals("later", trace.get(2).getJob());
+        assertEquals("master", trace.get(0).getParams().get("branchName"));
+
+        Map<String, BlockingRules> rules = BlockingSimulator.readRules(new StringReader(
+                "deploy-b.blockingJobs=xxx\\ndeploy-.*\nbuild.blockingEnvVars=branchName\n"));
+        assertEquals(2, rules.size());
+        assertEquals("deploy-.*", rules.get("deploy-b").matchJob("deploy-a"));
+        assertEquals("branchName", rules.get("build").getEnvVars().get(0));
+    }
+
+    /**
+     * Replaying the trace with and without rules
+     * @throws Exception
+     */
+    public void testSimulate() throws Exception {
+        List<BlockingSimulator.TraceEntry> trace = BlockingSimulator.readTrace(new StringReader(TRACE));
+
+        BlockingSimulator.Result free = BlockingSimulator.simulate(trace,
+                BlockingSimulator.readRules(new StringReader("")), 3);
+        assertEquals(100, free.getMakespan());
+        assertEquals(0, free.getWaitPercentile(100));
+
+        BlockingSimulator.Result blocked = BlockingSimulator.simulate(trace, BlockingSimulator.readRules(new StringReader(
+                "deploy-b.blockingJobs=deploy-.*\nbuild.blockingEnvVars=branchName\n")), 3);
+        // deploy-b waits for deploy-a, build waits for deploy-a on master
+        assertEquals(200, blocked.getMakespan());
+        assertEquals(0, blocked.getWaitPercentile(1));
+        assertEquals(90, blocked.getWaitPercentile(50));
+        assertEquals(100, blocked.getWaitPercentile(100));
+        assertEquals(250.0 / 600.0, blocked.getUtilization(), 0.0001);
+
+        BlockingSimulator.Result single = BlockingSimulator.simulate(trace,
+                BlockingSimulator.readRules(new StringReader("")), 1);
+        assertEquals(250, single.getMakespan());
+        assertEquals(1.0, single.getUtilization(), 0.0001);
+    }
+}
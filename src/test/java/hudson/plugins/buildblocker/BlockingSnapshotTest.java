@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.tasks.Shell;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests
+ */
+public class BlockingSnapshotTest extends HudsonTestCase {
+
+    /**
+     * Updates of the buildable items leave the original snapshot unchanged
+     * @throws Exception
+     */
+    public void testCopyOnWrite() throws Exception {
+        FreeStyleProject project = this.createFreeStyleProject("project");
+        Queue.BuildableItem item = QueueItems.buildable(project);
+
+        BlockingSnapshot snapshot = BlockingSnapshot.EMPTY.withBuildable(BlockingSnapshot.Work.of(item));
+        assertTrue(BlockingSnapshot.EMPTY.getBuildable().isEmpty());
+        assertEquals(1, snapshot.getBuildable().size());
+        assertEquals("project", snapshot.getBuildable().get(0).getFullName());
+        assertEquals(item.getId(), snapshot.getBuildable().get(0).getItemId());
+        assertNull(snapshot.getBuildable().get(0).getExecutable());
+
+        // the same item replaces the previous entry
+        assertEquals(1, snapshot.withBuildable(BlockingSnapshot.Work.of(item)).getBuildable().size());
+
+        assertTrue(snapshot.withoutBuildable(item.getId()).getBuildable().isEmpty());
+        assertEquals(1, snapshot.getBuildable().size());
+    }
+
+    /**
+     * The running work is read from the executors
+     * @throws Exception
+     */
+    public void testCapture() throws Exception {
+        FreeStyleProject project = this.createFreeStyleProject("running");
+        project.getBuildersList().add(new Shell("sleep 2"));
+        Future<FreeStyleBuild> future = project.scheduleBuild2(0);
+        while (!project.isBuilding()) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        BlockingSnapshot snapshot = BlockingSnapshot.capture();
+        assertEquals(1, snapshot.getRunning().size());
+        BlockingSnapshot.Work work = snapshot.getRunning().get(0);
+        assertEquals("running", work.getFullName());
+        assertEquals(-1, work.getItemId());
+        assertSame(project.getLastBuild(), work.getExecutable());
+
+        assertEquals("running", new BlockingJobsMonitor("runn.*", null).findBlockage(null, snapshot).getBlockerName());
+
+        future.get(30, TimeUnit.SECONDS);
+        assertTrue(BlockingSnapshot.capture().getRunning().isEmpty());
+        // the old snapshot still holds the finished build
+        assertEquals(1, snapshot.getRunning().size());
+    }
+
+    /**
+     * Items that left the queue to start block on their parameters until they are seen running
+     * @throws Exception
+     */
+    public void testStarted() throws Exception {
+        FreeStyleProject project = this.createFreeStyleProject("starting");
+        Queue.BuildableItem starting = QueueItems.buildable(project, "master");
+
+        BlockingSnapshot snapshot = BlockingSnapshot.EMPTY.withBuildable(BlockingSnapshot.Work.of(starting));
+        assertFalse(snapshot.getBuildable().get(0).isStarted());
+        snapshot = snapshot.withBuildable(BlockingSnapshot.Work.started(starting));
+        assertEquals(1, snapshot.getBuildable().size());
+        assertTrue(snapshot.getBuildable().get(0).isStarted());
+        assertEquals("master", snapshot.getBuildable().get(0).getParameters().get("branchName"));
+
+        BlockingJobsMonitor monitor = new BlockingJobsMonitor(null, "branchName");
+        Blockage blockage = monitor.findBlockage(QueueItems.buildable(project, "master"), snapshot);
+        assertNotNull(blockage);
+        assertEquals("branchName", blockage.getRule());
+        assertNull(monitor.findBlockage(QueueItems.buildable(project, "feature"), snapshot));
+        // an item doesn't block itself
+        assertNull(monitor.findBlockage(starting, snapshot));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import junit.framework.TestCase;
+import net.sf.json.JSONObject;
+
+/**
+ * Unit tests
+ */
+public class BlockingStatusTest extends TestCase {
+
+    /**
+     * The version changes only if the blocking graph changes
+     * @throws Exception
+     */
+    public void testVersion() throws Exception {
+        BlockingStatus status = new BlockingStatus();
+        assertEquals(0, status.getVersion());
+
+        status.blocked(1, "job", 100, "blockingJob", "block.*");
+        assertEquals(1, status.getVersion());
+
+        // same blocker and rule again
+        status.blocked(1, "job", 100, "blockingJob", "block.*");
+        assertEquals(1, status.getVersion());
+
+        status.blocked(1, "job", 100, "otherJob", "other.*");
+        assertEquals(2, status.getVersion());
+
+        // the environment of the blocker got resolved, the blocked interval goes on
+        status.blocked(1, "job", 100, "otherJob", "other.*", true);
+        assertEquals(3, status.getVersion());
+        assertTrue(status.getEntry(1).isResolving());
+        long blockedSince = status.getEntry(1).getBlockedSince();
+        status.blocked(1, "job", 100, "otherJob", "other.*", false);
+        assertEquals(4, status.getVersion());
+        assertFalse(status.getEntry(1).isResolving());
+        assertEquals(blockedSince, status.getEntry(1).getBlockedSince());
+
+        status.unblocked(2);
+        assertEquals(4, status.getVersion());
+
+        status.unblocked(1);
+        assertEquals(5, status.getVersion());
+        assertTrue(status.getEntries().isEmpty());
+    }
+
+    /**
+     * JSON representation of the blocked items
+     * @throws Exception
+     */
+    public void testToJSON() throws Exception {
+        BlockingStatus status = new BlockingStatus();
+        status.blocked(7, "job", 100, "blockingJob", "block.*");
+
+        JSONObject json = status.toJSON(350);
+        assertEquals(1, json.getLong("version"));
+        JSONObject item = json.getJSONArray("items").getJSONObject(0);
+        assertEquals(7, item.getLong("id"));
+        assertEquals("job", item.getString("task"));
+        assertEquals("blockingJob", item.getString("blocker"));
+        assertEquals("block.*", item.getString("rule"));
+        assertFalse(item.getBoolean("resolving"));
+
+        status.blocked(8, "other", 100, "Blocking Job", "folder/blockingJob", "block.*", false);
+        assertEquals("folder/blockingJob", status.getEntry(8).getBlockerJob());
+        assertNull(status.getEntry(7).getBlockerJob());
+        json = status.toJSON(350, new BlockingStatus.EntryFilter() {
+            public boolean accept(BlockingStatus.Entry entry) {
+                return entry.getBlockerJob() != null;
+            }
+        });
+        assertEquals(1, json.getJSONArray("items").size());
+        assertEquals(8, json.getJSONArray("items").getJSONObject(0).getLong("id"));
+        assertEquals(250, item.getLong("waitingMillis"));
+    }
+
+    /**
+     * Long-poll returns on change or timeout
+     * @throws Exception
+     */
+    public void testAwaitChange() throws Exception {
+        final BlockingStatus status = new BlockingStatus();
+
+        assertEquals(0, status.awaitChange(0, 50));
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                status.blocked(1, "job", 100, "blockingJob", "block.*");
+            }
+        };
+        thread.start();
+        assertEquals(1, status.awaitChange(0, 10000));
+        thread.join();
+    }
+}
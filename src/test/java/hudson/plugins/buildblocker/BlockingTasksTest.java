@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.TextAxis;
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Calendar;
+
+/**
+ * Unit tests
+ */
+public class BlockingTasksTest extends HudsonTestCase {
+
+    /**
+     * Jobs, matrix configurations and owned tasks resolve to their job
+     * @throws Exception
+     */
+    public void testJobOf() throws Exception {
+        FreeStyleProject project = this.createFreeStyleProject("freestyle");
+        assertSame(project, BlockingTasks.jobOf(project));
+        assertEquals("freestyle", BlockingTasks.fullName(project));
+
+        MatrixProject matrixProject = this.createMatrixProject("matrix");
+        matrixProject.setAxes(new AxisList(new TextAxis("axis", "a", "b")));
+        MatrixConfiguration configuration = matrixProject.getActiveConfigurations().iterator().next();
+        assertSame(matrixProject, BlockingTasks.jobOf(configuration));
+
+        // like a Pipeline node step, owned by its job
+        assertSame(project, BlockingTasks.jobOf(task(project)));
+        assertEquals("freestyle", BlockingTasks.fullName(task(task(project))));
+
+        assertNull(BlockingTasks.jobOf(task(null)));
+        assertNull(BlockingTasks.fullName(null));
+    }
+
+    /**
+     * Tasks that are not jobs pass the dispatcher
+     * @throws Exception
+     */
+    public void testCanRunOtherTask() throws Exception {
+        Queue.Item item = new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), task(null), new ArrayList<Action>()));
+        assertNull(new BuildBlockerQueueTaskDispatcher().canRun(item));
+    }
+
+    /**
+     * Returns a task that is not a job, owned by the given task or by itself if null.
+     */
+    private static Queue.Task task(final Queue.Task owner) {
+        return (Queue.Task) Proxy.newProxyInstance(BlockingTasksTest.class.getClassLoader(), new Class<?>[]{Queue.Task.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getOwnerTask")) {
+                            return owner != null ? owner : proxy;
+                        }
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        if (method.getReturnType() == long.class) {
+                            return -1L;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
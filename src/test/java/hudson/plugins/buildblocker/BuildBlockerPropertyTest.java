@@ -25,6 +25,7 @@
 package hudson.plugins.buildblocker;
 
 import hudson.model.Job;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
 import org.easymock.EasyMock;
 import org.jvnet.hudson.test.HudsonTestCase;
@@ -70,6 +71,34 @@ public class BuildBlockerPropertyTest extends HudsonTestCase {
         assertTrue(property.getDescriptor().isApplicable(Job.class));
     }
 
+    /**
+     * Validation of the blocking jobs regular expressions
+     * @throws Exception
+     */
+    public void testCheckRegex() throws Exception {
+        BuildBlockerProperty.BuildBlockerDescriptor descriptor = (BuildBlockerProperty.BuildBlockerDescriptor) new BuildBlockerProperty().getDescriptor();
+
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckRegex(null).kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckRegex("block.*\n.*-deploy").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckRegex("*BW2S.*QRT.").kind);
+        assertEquals(FormValidation.Kind.WARNING, descriptor.doCheckRegex("block.*\n(.*-)*deploy").kind);
+        assertEquals(FormValidation.Kind.WARNING, descriptor.doCheckBlockingJobs("(a+)+").kind);
+    }
+
+    /**
+     * Validation of the extractor ids of the blocking environment variables
+     * @throws Exception
+     */
+    public void testCheckBlockingEnvVars() throws Exception {
+        BuildBlockerProperty.BuildBlockerDescriptor descriptor = (BuildBlockerProperty.BuildBlockerDescriptor) new BuildBlockerProperty().getDescriptor();
+
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckBlockingEnvVars(null).kind);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckBlockingEnvVars("sha1\nbranch:parameters\nHOST:environment").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckBlockingEnvVars("branch:parameter").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckBlockingEnvVars("sha1\nbranch:").kind);
+        assertEquals(FormValidation.Kind.ERROR, descriptor.doCheckBlockingEnvVars(":parameters").kind);
+    }
+
     /**
      * Use different form data to test descriptor newInstance
      * @throws Exception
@@ -106,5 +135,10 @@ public class BuildBlockerPropertyTest extends HudsonTestCase {
         assertTrue(property.isUseBuildBlocker());
         assertNotNull(property.getBlockingJobs());
         assertEquals(value, property.getBlockingJobs());
+        assertFalse(property.isCoalesceQueuedBuilds());
+
+        formData.getJSONObject("useBuildBlocker").put("coalesceQueuedBuilds", true);
+        property = (BuildBlockerProperty) property.getDescriptor().newInstance(staplerRequest, formData);
+        assertTrue(property.isCoalesceQueuedBuilds());
     }
 }
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.ExtensionList;
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.model.labels.LabelAtom;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.slaves.DumbSlave;
+import jenkins.model.Jenkins;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scale tests driving many builds through the queue under mixed blocking rules.
+ *
+ * Not part of the default build, run with <code>mvn test -Pscale-tests</code>. The size is controlled by
+ * the system properties <code>scale.jobs</code>, <code>scale.slaves</code> and <code>scale.builds</code>.
+ */
+public class BuildBlockerScaleTest extends HudsonTestCase {
+
+    private static final int JOBS = Integer.getInteger("scale.jobs", 200);
+    private static final int SLAVES = Integer.getInteger("scale.slaves", 20);
+    private static final int BUILDS = Integer.getInteger("scale.builds", 2000);
+
+    /**
+     * number of distinct branch values used by the env var rules
+     */
+    private static final int BRANCHES = 25;
+
+    /**
+     * number of job groups used by the regex rules
+     */
+    private static final int GROUPS = 10;
+
+    /**
+     * the dispatcher measuring the plugin's share of CPU
+     */
+    private TimingDispatcher timingDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // replace the registered dispatcher by a timed delegate
+        ExtensionList<QueueTaskDispatcher> dispatchers = Jenkins.getInstance().getExtensionList(QueueTaskDispatcher.class);
+        BuildBlockerQueueTaskDispatcher dispatcher = dispatchers.get(BuildBlockerQueueTaskDispatcher.class);
+        dispatchers.remove(dispatcher);
+        timingDispatcher = new TimingDispatcher(dispatcher);
+        dispatchers.add(timingDispatcher);
+    }
+
+    /**
+     * Schedules BUILDS builds of JOBS jobs on SLAVES slaves and reports queue throughput,
+     * queue-to-start latency and the share of CPU spent in the plugin. The jobs have no builders,
+     * so the numbers are dominated by the queue and the blocking rules.
+     *
+     * @throws Exception
+     */
+    public void testQueueThroughput() throws Exception {
+        LabelAtom label = new LabelAtom("scale");
+        List<DumbSlave> slaves = new ArrayList<DumbSlave>();
+        for (int i = 0; i < SLAVES; i++) {
+            slaves.add(createSlave(label));
+        }
+        for (DumbSlave slave : slaves) {
+            slave.getComputer().connect(false).get();
+        }
+        Jenkins.getInstance().setNumExecutors(0);
+        Jenkins.getInstance().setMode(Node.Mode.EXCLUSIVE);
+
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < JOBS; i++) {
+            FreeStyleProject project = createFreeStyleProject("scale-" + (i % GROUPS) + "-job-" + i);
+            project.setAssignedLabel(label);
+            BuildBlockerProperty property = new BuildBlockerProperty();
+            switch (i % 3) {
+                case 0:
+                    // jobs of a group block each other
+                    property.setBlockingJobs("scale-" + (i % GROUPS) + "-job-.*\nunknown-.*");
+                    break;
+                case 1:
+                    // jobs on the same branch block each other
+                    property.setBlockingEnvVars("branchName");
+                    break;
+                default:
+                    property.setBlockingJobs("scale-" + ((i + 1) % GROUPS) + "-job-.*");
+                    property.setBlockingEnvVars("branchName");
+            }
+            project.addProperty(property);
+            projects.add(project);
+        }
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        long cpuStart = processCpuTime(os);
+        long start = System.currentTimeMillis();
+
+        long[] scheduled = new long[BUILDS];
+        List<Future<FreeStyleBuild>> futures = new ArrayList<Future<FreeStyleBuild>>(BUILDS);
+        for (int i = 0; i < BUILDS; i++) {
+            List<ParameterValue> values = new ArrayList<ParameterValue>();
+            values.add(new StringParameterValue("branchName", "branch-" + (i % BRANCHES)));
+            // unique value so that the queue does not fold the items
+            values.add(new StringParameterValue("seq", String.valueOf(i)));
+            scheduled[i] = System.currentTimeMillis();
+            futures.add(projects.get(i % JOBS).scheduleBuild2(0, new UserCause(), new ParametersAction(values)));
+        }
+
+        long[] latencies = new long[BUILDS];
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleBuild build = futures.get(i).get(30, TimeUnit.MINUTES);
+            assertNotNull(build);
+            latencies[i] = Math.max(build.getTimeInMillis() - scheduled[i], 0);
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        long cpu = processCpuTime(os) - cpuStart;
+        Arrays.sort(latencies);
+
+        System.out.println("build blocker scale test: " + JOBS + " jobs, " + SLAVES + " slaves, " + BUILDS + " builds");
+        System.out.println("  throughput:             " + (BUILDS * 1000L / elapsed) + " builds/s");
+        System.out.println("  queue-to-start p50/p90/p99: " + percentile(latencies, 50) + "/"
+                + percentile(latencies, 90) + "/" + percentile(latencies, 99) + " ms");
+        System.out.println("  canRun calls:           " + timingDispatcher.calls.get());
+        System.out.println("  canRun cpu time:        " + TimeUnit.NANOSECONDS.toMillis(timingDispatcher.cpuNanos.get()) + " ms");
+        if (cpu > 0) {
+            System.out.println("  plugin cpu share:       " + (timingDispatcher.cpuNanos.get() * 100.0 / cpu) + " %");
+        }
+
+        assertTrue(Jenkins.getInstance().getQueue().isEmpty());
+    }
+
+    /**
+     * Returns the given percentile of the sorted values.
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    /**
+     * Returns the CPU time used by the process in nanoseconds, or 0 if not supported by the JVM.
+     */
+    private static long processCpuTime(OperatingSystemMXBean os) {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    /**
+     * Delegates to the build blocker dispatcher and sums up the CPU time of the calls.
+     */
+    private static class TimingDispatcher extends QueueTaskDispatcher {
+        private final QueueTaskDispatcher delegate;
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong cpuNanos = new AtomicLong();
+
+        TimingDispatcher(QueueTaskDispatcher delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            long before = threads.getCurrentThreadCpuTime();
+            try {
+                return delegate.canRun(item);
+            } finally {
+                calls.incrementAndGet();
+                cpuNanos.addAndGet(threads.getCurrentThreadCpuTime() - before);
+            }
+        }
+    }
+}
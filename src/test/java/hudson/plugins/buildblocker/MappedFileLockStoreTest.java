@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Unit tests
+ */
+public class MappedFileLockStoreTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("lockstore", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Two stores sharing a directory, as two controllers would do
+     * @throws Exception
+     */
+    public void testPublishAndRead() throws Exception {
+        assertFalse(new MappedFileLockStore(null).isEnabled());
+
+        MappedFileLockStore first = new MappedFileLockStore(dir);
+        MappedFileLockStore second = new MappedFileLockStore(dir);
+        assertTrue(first.isEnabled());
+
+        first.publish("first", Arrays.asList("job:deploy", "env:branchName=master"), 60000);
+        second.publish("second", Collections.singletonList("job:other"), 60000);
+
+        Set<String> seenByFirst = first.readOthers("first");
+        assertEquals(Collections.singleton("job:other"), seenByFirst);
+
+        Set<String> seenBySecond = second.readOthers("second");
+        assertEquals(2, seenBySecond.size());
+        assertTrue(seenBySecond.contains("job:deploy"));
+        assertTrue(seenBySecond.contains("env:branchName=master"));
+
+        // republishing replaces the keys
+        first.publish("first", Collections.singletonList("job:deploy"), 60000);
+        assertEquals(Collections.singleton("job:deploy"), second.readOthers("second"));
+    }
+
+    /**
+     * Keys of expired leases are ignored
+     * @throws Exception
+     */
+    public void testExpiredLease() throws Exception {
+        MappedFileLockStore first = new MappedFileLockStore(dir);
+        MappedFileLockStore second = new MappedFileLockStore(dir);
+
+        first.publish("first", Collections.singletonList("job:deploy"), -1);
+        assertTrue(second.readOthers("second").isEmpty());
+    }
+
+    /**
+     * Lease files that are recreated or deleted are mapped again or dropped
+     * @throws Exception
+     */
+    public void testRecreatedLeaseFile() throws Exception {
+        MappedFileLockStore first = new MappedFileLockStore(dir);
+        MappedFileLockStore second = new MappedFileLockStore(dir);
+
+        first.publish("first", Collections.singletonList("job:deploy"), 60000);
+        assertEquals(Collections.singleton("job:deploy"), second.readOthers("second"));
+
+        // a restarted controller recreates its lease file
+        assertTrue(new File(dir, "first.lease").delete());
+        new MappedFileLockStore(dir).publish("first", Collections.singletonList("job:other"), 60000);
+        assertEquals(Collections.singleton("job:other"), second.readOthers("second"));
+
+        assertTrue(new File(dir, "first.lease").delete());
+        assertTrue(second.readOthers("second").isEmpty());
+
+        // the writer maps its own file again as well
+        first.publish("first", Collections.singletonList("job:deploy"), 60000);
+        assertEquals(Collections.singleton("job:deploy"), second.readOthers("second"));
+    }
+
+    /**
+     * A writer that died in the middle of a write leaves an odd sequence number behind
+     * @throws Exception
+     */
+    public void testInterruptedWrite() throws Exception {
+        MappedFileLockStore first = new MappedFileLockStore(dir);
+        MappedFileLockStore second = new MappedFileLockStore(dir);
+
+        first.publish("first", Collections.singletonList("job:deploy"), 60000);
+        assertEquals(Collections.singleton("job:deploy"), second.readOthers("second"));
+
+        // a write in progress: the keys read before are kept
+        long sequence = setSequence(new File(dir, "first.lease"), -1);
+        setSequence(new File(dir, "first.lease"), sequence + 1);
+        assertEquals(Collections.singleton("job:deploy"), second.readOthers("second"));
+
+        // the restarted controller makes the sequence even again
+        new MappedFileLockStore(dir).publish("first", Collections.singletonList("job:other"), 60000);
+        assertEquals(Collections.singleton("job:other"), second.readOthers("second"));
+    }
+
+    /**
+     * Sets the sequence number of the given lease file, returns the previous one.
+     */
+    private static long setSequence(File file, long sequence) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            long previous = raf.readLong();
+            if (sequence >= 0) {
+                raf.seek(4);
+                raf.writeLong(sequence);
+            }
+            return previous;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.model.Action;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Creates queue items for the tests.
+ */
+final class QueueItems {
+
+    private QueueItems() {
+    }
+
+    /**
+     * Returns a new buildable item of the given task without parameters.
+     */
+    static Queue.BuildableItem buildable(Queue.Task task) {
+        return new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), task, new ArrayList<Action>()));
+    }
+
+    /**
+     * Returns a new buildable item of the given task with the given <code>branchName</code> parameter.
+     */
+    static Queue.BuildableItem buildable(Queue.Task task, String branch) {
+        List<ParameterValue> values = new ArrayList<ParameterValue>();
+        values.add(new StringParameterValue("branchName", branch));
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new ParametersAction(values));
+        return new Queue.BuildableItem(new Queue.WaitingItem(Calendar.getInstance(), task, actions));
+    }
+}
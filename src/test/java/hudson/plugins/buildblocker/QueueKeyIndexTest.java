@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Unit tests
+ */
+public class QueueKeyIndexTest extends HudsonTestCase {
+
+    /**
+     * Conflicts between queued items with the same parameter value
+     * @throws Exception
+     */
+    public void testFindConflict() throws Exception {
+        FreeStyleProject project = this.createFreeStyleProject();
+        QueueKeyIndex index = new QueueKeyIndex();
+
+        Queue.BuildableItem first = QueueItems.buildable(project, "master");
+        Queue.BuildableItem second = QueueItems.buildable(project, "master");
+        Queue.BuildableItem other = QueueItems.buildable(project, "feature");
+        Queue.BuildableItem waiting = QueueItems.buildable(project, "master");
+
+        index.add(first, BlockingJobsMonitor.itemParameters(first));
+        index.add(second, BlockingJobsMonitor.itemParameters(second));
+        index.add(other, BlockingJobsMonitor.itemParameters(other));
+
+        // the older buildable item goes first
+        assertNull(index.findConflict(first, "branchName", "master"));
+        assertSame(first, index.findConflict(second, "branchName", "master"));
+        assertNull(index.findConflict(other, "branchName", "feature"));
+        assertNull(index.findConflict(other, "unknown", "master"));
+
+        // items which are not buildable are blocked by any indexed one
+        assertSame(first, index.findConflict(waiting, "branchName", "master"));
+
+        index.remove(first.getId());
+        assertNull(index.findConflict(second, "branchName", "master"));
+        assertSame(second, index.findConflict(waiting, "branchName", "master"));
+
+        index.remove(second.getId());
+        assertNull(index.findConflict(waiting, "branchName", "master"));
+
+        // items without parameters are not indexed
+        Queue.BuildableItem plain = QueueItems.buildable(project);
+        index.add(plain, BlockingJobsMonitor.itemParameters(plain));
+        assertSame(other, index.findConflict(plain, "branchName", "feature"));
+    }
+
+    /**
+     * Requested values with regular expression syntax match the indexed values like running builds do
+     * @throws Exception
+     */
+    public void testFindConflictRegex() throws Exception {
+        FreeStyleProject project = this.createFreeStyleProject();
+        QueueKeyIndex index = new QueueKeyIndex();
+
+        Queue.BuildableItem feature = QueueItems.buildable(project, "feature/x");
+        Queue.BuildableItem master = QueueItems.buildable(project, "master");
+        Queue.BuildableItem waiting = QueueItems.buildable(project, "feature/.*");
+        index.add(feature, BlockingJobsMonitor.itemParameters(feature));
+        index.add(master, BlockingJobsMonitor.itemParameters(master));
+
+        assertSame(feature, index.findConflict(waiting, "branchName", "feature/.*"));
+        assertSame(master, index.findConflict(waiting, "branchName", "mas.*"));
+        assertNull(index.findConflict(waiting, "branchName", "release/.*"));
+        assertNull(index.findConflict(waiting, "branchName", "*BW2S.*QRT."));
+        assertNull(index.findConflict(waiting, "otherName", ".*"));
+    }
+}
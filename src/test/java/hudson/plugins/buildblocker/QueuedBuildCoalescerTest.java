@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.tasks.Shell;
+import jenkins.model.Jenkins;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests
+ */
+public class QueuedBuildCoalescerTest extends HudsonTestCase {
+
+    /**
+     * An older build blocked on a branch is cancelled when a newer one for the same branch is queued
+     * @throws Exception
+     */
+    public void testCoalesce() throws Exception {
+        Jenkins.getInstance().setNumExecutors(2);
+
+        FreeStyleProject blockingProject = this.createFreeStyleProject("blockingJob");
+        blockingProject.getBuildersList().add(new Shell("sleep 5"));
+        Future<FreeStyleBuild> blockingFuture = blockingProject.scheduleBuild2(0, new UserCause(), parameters("master", "0"));
+        while (!blockingProject.isBuilding()) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        FreeStyleProject project = this.createFreeStyleProject("pullRequest");
+        BuildBlockerProperty property = new BuildBlockerProperty();
+        property.setBlockingEnvVars("branchName");
+        property.setCoalesceQueuedBuilds(true);
+        project.addProperty(property);
+
+        Future<FreeStyleBuild> olderFuture = project.scheduleBuild2(0, new UserCause(), parameters("master", "1"));
+        waitUntilBlocked(project);
+
+        Future<FreeStyleBuild> otherFuture = project.scheduleBuild2(0, new UserCause(), parameters("feature", "2"));
+        Future<FreeStyleBuild> newerFuture = project.scheduleBuild2(0, new UserCause(), parameters("master", "3"));
+
+        long start = System.currentTimeMillis();
+        while (!olderFuture.isCancelled() && System.currentTimeMillis() < start + 10000) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertTrue(olderFuture.isCancelled());
+
+        blockingFuture.get(30, TimeUnit.SECONDS);
+        FreeStyleBuild newer = newerFuture.get(30, TimeUnit.SECONDS);
+        assertEquals("3", newer.getBuildVariables().get("seq"));
+        // the causes of the older build were carried over
+        assertEquals(2, newer.getCauses().size());
+        assertNotNull(otherFuture.get(30, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Waits until the first item of the given project is blocked by the build blocker.
+     */
+    private void waitUntilBlocked(FreeStyleProject project) throws Exception {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() < start + 10000) {
+            Jenkins.getInstance().getQueue().maintain();
+            Queue.Item item = Jenkins.getInstance().getQueue().getItem(project);
+            if (item != null && BlockingStatus.get().getEntry(item.getId()) != null) {
+                return;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        fail("item was not blocked");
+    }
+
+    /**
+     * Returns the parameters of a build on the given branch.
+     */
+    private static ParametersAction parameters(String branch, String seq) {
+        List<ParameterValue> values = new ArrayList<ParameterValue>();
+        values.add(new StringParameterValue("branchName", branch));
+        values.add(new StringParameterValue("seq", seq));
+        return new ParametersAction(values);
+    }
+}
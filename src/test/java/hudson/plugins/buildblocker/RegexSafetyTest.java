@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2004-2011, Sun Microsystems, Inc., Frederik Fromm
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.buildblocker;
+
+import junit.framework.TestCase;
+
+import java.util.regex.Pattern;
+
+/**
+ * Unit tests
+ */
+public class RegexSafetyTest extends TestCase {
+
+    /**
+     * Patterns with repeated groups containing repetitions are reported
+     * @throws Exception
+     */
+    public void testFindNestedQuantifier() throws Exception {
+        assertNull(RegexSafety.findNestedQuantifier("block.*"));
+        assertNull(RegexSafety.findNestedQuantifier(".*-deploy"));
+        assertNull(RegexSafety.findNestedQuantifier("(abc)+"));
+        assertNull(RegexSafety.findNestedQuantifier("(a+)?"));
+        assertNull(RegexSafety.findNestedQuantifier("(a*){0,1}"));
+        assertNull(RegexSafety.findNestedQuantifier("[(a+)]+"));
+        assertNull(RegexSafety.findNestedQuantifier("\\(a+\\)+"));
+
+        assertEquals("(a+)+", RegexSafety.findNestedQuantifier("(a+)+b"));
+        assertEquals("(.*-)*", RegexSafety.findNestedQuantifier("(.*-)*deploy"));
+        assertEquals("(x(a*))+", RegexSafety.findNestedQuantifier("(x(a*))+"));
+        assertEquals("(a{2,})*", RegexSafety.findNestedQuantifier("(a{2,})*"));
+        assertEquals("([a-z]+/){3}", RegexSafety.findNestedQuantifier("folder/([a-z]+/){3}job"));
+        assertEquals("(.*a){12}", RegexSafety.findNestedQuantifier("(.*a){12}b"));
+    }
+
+    /**
+     * Matching gives up after the given number of steps
+     * @throws Exception
+     */
+    public void testBoundedCharSequence() throws Exception {
+        assertTrue(Pattern.compile("block.*").matcher(new BoundedCharSequence("blockingJob", 100)).matches());
+
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            name.append('a');
+        }
+        name.append('!');
+        try {
+            Pattern.compile("(.*a){12}b").matcher(new BoundedCharSequence(name.toString(), 100000)).matches();
+            fail("expected the match to give up");
+        } catch (BoundedCharSequence.LimitExceededException e) {
+            // expected
+        }
+
+        // the queue treats a match giving up as blocking, and says so
+        String rule = BlockingRules.parse("(.*a){12}b", null).matchJob(name.toString());
+        assertEquals("(.*a){12}b " + BlockingRules.GAVE_UP, rule);
+        assertTrue(BlockingRules.gaveUp(rule));
+        assertEquals("branch " + BlockingRules.GAVE_UP, BlockingRules.matchValue("branch", name.toString(), "(.*a){12}b"));
+        assertEquals("branch", BlockingRules.matchValue("branch", "master", "mas.*"));
+        assertNull(BlockingRules.matchValue("branch", "master", "main"));
+    }
+}